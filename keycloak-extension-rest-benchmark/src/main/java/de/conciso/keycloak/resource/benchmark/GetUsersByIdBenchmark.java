@@ -0,0 +1,72 @@
+package de.conciso.keycloak.resource.benchmark;
+
+import de.conciso.keycloak.resource.admin.GetUsersByIdResource;
+import jakarta.ws.rs.core.Response;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import org.keycloak.common.Profile;
+import org.keycloak.util.JsonSerialization;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * One users-by-id request per operation, from resolving the ids to the serialized JSON body, without a database.
+ * Run with {@code -prof gc} to see the allocation per request ({@code gc.alloc.rate.norm}).
+ * <p>
+ * Only covers the {@code SingleUserLookup} fallback, since {@link InMemoryKeycloak} has no JPA connection. The batched
+ * lookup against the JPA user store is measured by {@link GetUsersByIdJpaBenchmark}.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class GetUsersByIdBenchmark {
+
+  @Param({"true", "false"})
+  boolean briefRepresentation;
+
+  @Param({"1", "100", "1000", "10000"})
+  int size;
+
+  private InMemoryKeycloak keycloak;
+  private List<UUID> ids;
+
+  @Setup
+  public void setUp() {
+    // representations check whether features of the server are enabled, the defaults are
+    Profile.configure();
+    keycloak = new InMemoryKeycloak();
+    ids = new ArrayList<>(size);
+    for (int i = 0; i < size; i++) {
+      UUID id = UUID.randomUUID();
+      keycloak.addUser(id);
+      ids.add(id);
+    }
+  }
+
+  @Benchmark
+  public Response getUsersById() throws IOException {
+    // resources are created per request, like the provider does
+    GetUsersByIdResource resource = new GetUsersByIdResource(keycloak.getSession(), keycloak.getAuth());
+    Response response = resource.getAllUsersByListOfIds(ids, briefRepresentation, List.of(), List.of(), false,
+        false, null, null);
+    // what the JAX-RS layer does with the buffered entity
+    JsonSerialization.mapper.writeValue(OutputStream.nullOutputStream(), response.getEntity());
+    return response;
+  }
+}
@@ -0,0 +1,83 @@
+package de.conciso.keycloak.resource.benchmark;
+
+import de.conciso.keycloak.resource.admin.GetUsersByIdResource;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import org.keycloak.common.Profile;
+import org.keycloak.util.JsonSerialization;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * One users-by-id request per operation against the user tables of Keycloak in an in-memory H2 database, from
+ * resolving the ids to the serialized JSON body. Each request starts with an empty persistence context, and there is no
+ * user cache, so all users are read from the database.
+ * <p>
+ * Compares the batched {@code JpaBulkUserLookup}, which loads the users and their attributes and required actions with
+ * a few queries per chunk of ids, with the {@code SingleUserLookup} fallback, which queries each user and its
+ * associations one by one. H2 runs in the same process, so the difference is the cost of the queries without the
+ * network round trips a real database adds to each of them.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class GetUsersByIdJpaBenchmark {
+
+  @Param({"true", "false"})
+  boolean briefRepresentation;
+
+  @Param({"1", "100", "1000", "10000"})
+  int size;
+
+  @Param({"true", "false"})
+  boolean batched;
+
+  private JpaKeycloak keycloak;
+  private List<UUID> ids;
+
+  @Setup
+  public void setUp() {
+    // representations check whether features of the server are enabled, the defaults are
+    Profile.configure();
+    keycloak = new JpaKeycloak();
+    ids = new ArrayList<>(size);
+    for (int i = 0; i < size; i++) {
+      ids.add(UUID.randomUUID());
+    }
+    keycloak.addUsers(ids);
+  }
+
+  @TearDown
+  public void tearDown() {
+    keycloak.close();
+  }
+
+  @Benchmark
+  public Object getUsersById() throws IOException {
+    try (JpaKeycloak.Request request = keycloak.openRequest(batched)) {
+      GetUsersByIdResource resource = new GetUsersByIdResource(request.session(), keycloak.getAuth());
+      Object entity = resource.getAllUsersByListOfIds(ids, briefRepresentation, List.of(), List.of(), false,
+          false, null, null).getEntity();
+      // serialized before the persistence context is closed, like the JAX-RS layer does within the request
+      JsonSerialization.mapper.writeValue(OutputStream.nullOutputStream(), entity);
+      return entity;
+    }
+  }
+}
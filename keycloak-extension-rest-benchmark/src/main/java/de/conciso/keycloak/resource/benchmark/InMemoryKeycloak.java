@@ -0,0 +1,116 @@
+package de.conciso.keycloak.resource.benchmark;
+
+import java.lang.reflect.Proxy;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.function.Function;
+import java.util.stream.Stream;
+import org.keycloak.models.KeycloakContext;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.SubjectCredentialManager;
+import org.keycloak.models.UserModel;
+import org.keycloak.models.UserProvider;
+import org.keycloak.services.resources.admin.fgap.AdminPermissionEvaluator;
+import org.keycloak.services.resources.admin.fgap.UserPermissionEvaluator;
+import org.keycloak.storage.adapter.AbstractInMemoryUserAdapter;
+
+/**
+ * Stand-ins for the parts of a Keycloak session that users-by-id uses, backed by a map of users and an admin who may
+ * view all of them. There is no JPA connection, so users are resolved one by one through the user provider.
+ * <p>
+ * Calls of anything else fail, so that the benchmark notices when the resource starts to depend on more of the
+ * session.
+ */
+final class InMemoryKeycloak {
+
+  static final SubjectCredentialManager NO_CREDENTIALS = stub(SubjectCredentialManager.class, Map.of(
+      "isConfiguredFor", args -> false,
+      "getDisableableCredentialTypesStream", args -> Stream.empty()));
+
+  private final Map<String, UserModel> users = new HashMap<>();
+  private final RealmModel realm = stub(RealmModel.class, Map.of(
+      "getId", args -> "benchmark",
+      "getName", args -> "benchmark"));
+  private final KeycloakContext context = stub(KeycloakContext.class, Map.of(
+      "getRealm", args -> realm,
+      "getHttpRequest", args -> null));
+  private final UserProvider userProvider = stub(UserProvider.class, Map.of(
+      "getUserById", args -> users.get((String) args[1]),
+      "getNotBeforeOfUser", args -> 0));
+  private final KeycloakSession session = stub(KeycloakSession.class, Map.of(
+      "getContext", args -> context,
+      "users", args -> userProvider,
+      "getProvider", args -> null));
+  private final AdminPermissionEvaluator auth = adminViewingAllUsers();
+
+  static AdminPermissionEvaluator adminViewingAllUsers() {
+    UserPermissionEvaluator userPermissions = stub(UserPermissionEvaluator.class, Map.of(
+        "requireQuery", args -> null,
+        "canView", args -> true));
+    return stub(AdminPermissionEvaluator.class, Map.of("users", args -> userPermissions));
+  }
+
+  /**
+   * Adds a user stored in the user store.
+   */
+  void addUser(UUID id) {
+    UserModel user = new StoredUser(session, realm, id.toString());
+    fill(user, id);
+    users.put(id.toString(), user);
+  }
+
+  /**
+   * Gives the user the fields, attributes and required action of all users in the benchmarks.
+   */
+  static void fill(UserModel user, UUID id) {
+    user.setUsername("user-" + id);
+    user.setEmail("user-" + id + "@example.com");
+    user.setFirstName("First");
+    user.setLastName("Last");
+    user.setEmailVerified(true);
+    user.setEnabled(true);
+    user.setCreatedTimestamp(1_700_000_000_000L);
+    user.setSingleAttribute("department", "engineering");
+    user.setSingleAttribute("costCenter", "4711");
+    user.addRequiredAction(UserModel.RequiredAction.UPDATE_PASSWORD);
+  }
+
+  KeycloakSession getSession() {
+    return session;
+  }
+
+  AdminPermissionEvaluator getAuth() {
+    return auth;
+  }
+
+  @SuppressWarnings("unchecked")
+  static <T> T stub(Class<T> type, Map<String, Function<Object[], Object>> methods) {
+    return (T) Proxy.newProxyInstance(InMemoryKeycloak.class.getClassLoader(), new Class<?>[]{type},
+        (proxy, method, args) -> {
+          Function<Object[], Object> implementation = methods.get(method.getName());
+          if (implementation != null) {
+            return implementation.apply(args);
+          }
+          return switch (method.getName()) {
+            case "hashCode" -> System.identityHashCode(proxy);
+            case "equals" -> proxy == args[0];
+            case "toString" -> type.getSimpleName() + " stand-in";
+            default -> throw new UnsupportedOperationException(type.getSimpleName() + "." + method.getName());
+          };
+        });
+  }
+
+  private static final class StoredUser extends AbstractInMemoryUserAdapter {
+
+    private StoredUser(KeycloakSession session, RealmModel realm, String id) {
+      super(session, realm, id);
+    }
+
+    @Override
+    public SubjectCredentialManager credentialManager() {
+      return NO_CREDENTIALS;
+    }
+  }
+}
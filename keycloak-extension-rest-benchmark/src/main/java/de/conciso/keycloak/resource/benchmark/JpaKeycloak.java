@@ -0,0 +1,121 @@
+package de.conciso.keycloak.resource.benchmark;
+
+import static de.conciso.keycloak.resource.benchmark.InMemoryKeycloak.NO_CREDENTIALS;
+import static de.conciso.keycloak.resource.benchmark.InMemoryKeycloak.stub;
+
+import jakarta.persistence.EntityManager;
+import jakarta.persistence.EntityManagerFactory;
+import java.util.Collection;
+import java.util.Map;
+import java.util.UUID;
+import org.hibernate.jpa.HibernatePersistenceConfiguration;
+import org.hibernate.tool.schema.Action;
+import org.keycloak.connections.jpa.JpaConnectionProvider;
+import org.keycloak.models.KeycloakContext;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.SubjectCredentialManager;
+import org.keycloak.models.UserModel;
+import org.keycloak.models.UserProvider;
+import org.keycloak.models.jpa.JpaUserProvider;
+import org.keycloak.models.jpa.entities.CredentialEntity;
+import org.keycloak.models.jpa.entities.FederatedIdentityEntity;
+import org.keycloak.models.jpa.entities.UserAttributeEntity;
+import org.keycloak.models.jpa.entities.UserEntity;
+import org.keycloak.models.jpa.entities.UserGroupMembershipEntity;
+import org.keycloak.models.jpa.entities.UserRequiredActionEntity;
+import org.keycloak.models.jpa.entities.UserRoleMappingEntity;
+import org.keycloak.models.utils.UserModelDelegate;
+import org.keycloak.services.resources.admin.fgap.AdminPermissionEvaluator;
+
+/**
+ * Stand-ins for the parts of a Keycloak session that users-by-id uses, backed by the user tables of Keycloak in an
+ * in-memory H2 database and an admin who may view all users. Users are resolved through the JPA user provider of
+ * Keycloak, so each lookup that misses the persistence context is a query against the database.
+ * <p>
+ * Like {@link InMemoryKeycloak}, calls of anything else fail. Credentials are not stored, so the users get the same
+ * credential manager as in-memory users.
+ */
+final class JpaKeycloak implements AutoCloseable {
+
+  private final EntityManagerFactory entityManagerFactory = new HibernatePersistenceConfiguration("benchmark")
+      .managedClasses(UserEntity.class, UserAttributeEntity.class, UserRequiredActionEntity.class,
+          CredentialEntity.class, FederatedIdentityEntity.class, UserGroupMembershipEntity.class,
+          UserRoleMappingEntity.class)
+      // like the H2 database of Keycloak itself, the attribute tables have a column named VALUE
+      .jdbcUrl("jdbc:h2:mem:benchmark;DB_CLOSE_DELAY=-1;NON_KEYWORDS=VALUE")
+      .schemaToolingAction(Action.CREATE_DROP)
+      .createEntityManagerFactory();
+  private final RealmModel realm = stub(RealmModel.class, Map.of(
+      "getId", args -> "benchmark",
+      "getName", args -> "benchmark",
+      // spares the lookup of other users with the same email when adding users
+      "isDuplicateEmailsAllowed", args -> true));
+  private final KeycloakContext context = stub(KeycloakContext.class, Map.of(
+      "getRealm", args -> realm,
+      "getHttpRequest", args -> null));
+  private final AdminPermissionEvaluator auth = InMemoryKeycloak.adminViewingAllUsers();
+
+  /**
+   * Adds users stored in the user store, all in one transaction.
+   */
+  void addUsers(Collection<UUID> ids) {
+    try (Request request = openRequest(false)) {
+      request.entityManager().getTransaction().begin();
+      JpaUserProvider users = new JpaUserProvider(request.session(), request.entityManager());
+      for (UUID id : ids) {
+        InMemoryKeycloak.fill(users.addUser(realm, id.toString(), "user-" + id, false, false), id);
+      }
+      request.entityManager().getTransaction().commit();
+    }
+  }
+
+  /**
+   * Opens a session with a new persistence context, like each request gets one.
+   *
+   * @param batched whether the session has the JPA connection that users-by-id needs for its batched queries,
+   *                otherwise it resolves users one by one through the user provider
+   */
+  Request openRequest(boolean batched) {
+    EntityManager entityManager = entityManagerFactory.createEntityManager();
+    JpaConnectionProvider jpa = stub(JpaConnectionProvider.class, Map.of(
+        "getEntityManager", args -> entityManager));
+    // the user provider of Keycloak and the session refer to each other
+    UserProvider[] users = new UserProvider[1];
+    KeycloakSession session = stub(KeycloakSession.class, Map.of(
+        "getContext", args -> context,
+        "users", args -> users[0],
+        "getProvider", args -> batched && args[0] == JpaConnectionProvider.class ? jpa : null));
+    UserProvider jpaUsers = new JpaUserProvider(session, entityManager);
+    users[0] = stub(UserProvider.class, Map.of(
+        "getUserById", args -> withoutCredentials(jpaUsers.getUserById((RealmModel) args[0], (String) args[1])),
+        "getNotBeforeOfUser", args -> 0));
+    return new Request(session, entityManager);
+  }
+
+  private static UserModel withoutCredentials(UserModel user) {
+    return user == null ? null : new UserModelDelegate(user) {
+      @Override
+      public SubjectCredentialManager credentialManager() {
+        return NO_CREDENTIALS;
+      }
+    };
+  }
+
+  AdminPermissionEvaluator getAuth() {
+    return auth;
+  }
+
+  @Override
+  public void close() {
+    entityManagerFactory.close();
+  }
+
+  record Request(KeycloakSession session, EntityManager entityManager) implements AutoCloseable {
+
+    @Override
+    public void close() {
+      entityManager.close();
+    }
+  }
+}
@@ -0,0 +1,114 @@
+package de.conciso.keycloak.resource.admin;
+
+import jakarta.ws.rs.ClientErrorException;
+import jakarta.ws.rs.core.Response.Status;
+import java.util.Iterator;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Limits the load bulk lookups put on a node, so that they cannot starve logins of database connections and worker
+ * threads. A limit of 0 disables it.
+ * <ul>
+ *   <li>The number of ids resolved by one request.</li>
+ *   <li>The number of requests running concurrently per realm. Further requests are rejected right away instead of
+ *   waiting for a free slot, which would block an HTTP worker thread that logins need as well. Clients can retry or
+ *   use the async endpoint, whose requests wait on threads of their own.</li>
+ * </ul>
+ * Requests with too many ids are rejected with 413, since retrying them cannot succeed. Requests without a free slot
+ * are rejected with 429, so that clients back off.
+ */
+final class AdmissionControl {
+
+  private static final long RETRY_AFTER_SECONDS = 1;
+
+  private final int maxIdsPerRequest;
+  private final int maxConcurrentRequests;
+  private final ConcurrentMap<String, Semaphore> realms = new ConcurrentHashMap<>();
+
+  AdmissionControl(int maxIdsPerRequest, int maxConcurrentRequests) {
+    this.maxIdsPerRequest = maxIdsPerRequest;
+    this.maxConcurrentRequests = maxConcurrentRequests;
+  }
+
+  /**
+   * @return a permit that has to be released when the request is done, or {@code null} if the request is rejected
+   */
+  Permit tryAcquire(String realmId) {
+    if (maxConcurrentRequests <= 0) {
+      return new Permit(null);
+    }
+    Semaphore slots = realms.computeIfAbsent(realmId, id -> new Semaphore(maxConcurrentRequests));
+    return slots.tryAcquire() ? new Permit(slots) : null;
+  }
+
+  /**
+   * @return seconds a rejected client should wait before retrying
+   */
+  long getRetryAfterSeconds() {
+    return RETRY_AFTER_SECONDS;
+  }
+
+  /**
+   * Fails fast if the number of ids is known upfront.
+   */
+  void checkIdCount(int count) {
+    if (maxIdsPerRequest > 0 && count > maxIdsPerRequest) {
+      throw tooManyIds();
+    }
+  }
+
+  /**
+   * @return the given ids, failing once more than the allowed number of them is read. Only for ids that are read
+   * before the response starts, streamed responses check the number of their ids upfront.
+   */
+  Iterator<UUID> limit(Iterator<UUID> ids) {
+    if (maxIdsPerRequest <= 0) {
+      return ids;
+    }
+    return new Iterator<>() {
+      private int count;
+
+      @Override
+      public boolean hasNext() {
+        return ids.hasNext();
+      }
+
+      @Override
+      public UUID next() {
+        if (++count > maxIdsPerRequest) {
+          throw tooManyIds();
+        }
+        return ids.next();
+      }
+    };
+  }
+
+  private ClientErrorException tooManyIds() {
+    return new ClientErrorException("At most " + maxIdsPerRequest + " ids can be requested at once",
+        Status.REQUEST_ENTITY_TOO_LARGE);
+  }
+
+  static final class Permit {
+
+    // null if concurrency is not limited
+    private final Semaphore slots;
+    private final AtomicBoolean released = new AtomicBoolean();
+
+    private Permit(Semaphore slots) {
+      this.slots = slots;
+    }
+
+    /**
+     * Can safely be called more than once.
+     */
+    void release() {
+      if (slots != null && released.compareAndSet(false, true)) {
+        slots.release();
+      }
+    }
+  }
+}
@@ -0,0 +1,81 @@
+package de.conciso.keycloak.resource.admin;
+
+import jakarta.ws.rs.core.HttpHeaders;
+import jakarta.ws.rs.core.Response;
+import jakarta.ws.rs.core.Response.Status;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+import org.jboss.logging.Logger;
+
+/**
+ * Runs large users-by-id requests on a bounded pool of threads of its own, so that they do not hold the HTTP worker
+ * threads of the server that logins and token requests need. Requests that find all threads busy wait in a bounded
+ * queue and are rejected if it is full. The pool is only created once the first request arrives.
+ */
+final class AsyncExecution {
+
+  private static final Logger log = Logger.getLogger(AsyncExecution.class);
+
+  private final int maxConcurrentRequests;
+  private final int maxQueuedRequests;
+  // null until the first request
+  private ThreadPoolExecutor executor;
+
+  AsyncExecution(int maxConcurrentRequests, int maxQueuedRequests) {
+    this.maxConcurrentRequests = maxConcurrentRequests;
+    this.maxQueuedRequests = maxQueuedRequests;
+  }
+
+  private synchronized ThreadPoolExecutor executor() {
+    if (executor == null) {
+      AtomicInteger threadCount = new AtomicInteger();
+      ThreadFactory threadFactory = runnable -> {
+        Thread thread = new Thread(runnable, "users-by-id-async-" + threadCount.incrementAndGet());
+        thread.setDaemon(true);
+        return thread;
+      };
+      executor = new ThreadPoolExecutor(maxConcurrentRequests, maxConcurrentRequests, 60, TimeUnit.SECONDS,
+          maxQueuedRequests > 0 ? new ArrayBlockingQueue<>(maxQueuedRequests) : new SynchronousQueue<>(),
+          threadFactory);
+      executor.allowCoreThreadTimeOut(true);
+    }
+    return executor;
+  }
+
+  /**
+   * @return completes with the response or the exception of the request, or right away with 429 if the queue is full
+   */
+  CompletionStage<Response> submit(Supplier<Response> request) {
+    CompletableFuture<Response> response = new CompletableFuture<>();
+    try {
+      executor().execute(() -> {
+        try {
+          response.complete(request.get());
+        } catch (Throwable e) {
+          response.completeExceptionally(e);
+        }
+      });
+    } catch (RejectedExecutionException e) {
+      log.warn("Rejecting async users-by-id request, too many queued requests");
+      response.complete(Response.status(Status.TOO_MANY_REQUESTS)
+          .header(HttpHeaders.RETRY_AFTER, 1)
+          .entity("Too many concurrent requests")
+          .build());
+    }
+    return response;
+  }
+
+  synchronized void close() {
+    if (executor != null) {
+      executor.shutdown();
+    }
+  }
+}
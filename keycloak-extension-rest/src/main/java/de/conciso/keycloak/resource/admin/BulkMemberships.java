@@ -0,0 +1,139 @@
+package de.conciso.keycloak.resource.admin;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import org.keycloak.models.ClientModel;
+import org.keycloak.models.GroupModel;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.RoleModel;
+import org.keycloak.models.UserModel;
+import org.keycloak.models.utils.KeycloakModelUtils;
+import org.keycloak.models.utils.RoleUtils;
+
+/**
+ * Resolves the group and role memberships of many users at once. The direct memberships of all users are loaded in
+ * batches, while the path, parents and roles of each group and the composites of each role are resolved only once and
+ * kept for the lifetime of one request.
+ */
+final class BulkMemberships {
+
+  private final KeycloakSession session;
+  private final BulkUserLookup userLookup;
+  // null values for groups and roles that have been removed in the meantime
+  private final Map<String, Group> groups = new HashMap<>();
+  private final Map<String, Role> roles = new HashMap<>();
+  private final Map<String, Set<String>> effectiveRoleIds = new HashMap<>();
+
+  BulkMemberships(KeycloakSession session, BulkUserLookup userLookup) {
+    this.session = session;
+    this.userLookup = userLookup;
+  }
+
+  /**
+   * @return the memberships of the given users, keyed by user id in the order of the users
+   */
+  Map<String, UserMemberships> get(RealmModel realm, Collection<UserModel> users) {
+    Map<String, Set<String>> groupIds = userLookup.getGroupIds(realm, users);
+    Map<String, Set<String>> roleIds = userLookup.getRoleIds(realm, users);
+    Map<String, UserMemberships> memberships = new LinkedHashMap<>();
+    for (UserModel user : users) {
+      UserMemberships userMemberships = new UserMemberships();
+      Set<String> effectiveRoles = new HashSet<>();
+      for (String groupId : groupIds.getOrDefault(user.getId(), Set.of())) {
+        Group group = getGroup(realm, groupId);
+        if (group != null) {
+          userMemberships.getGroups().add(group.path());
+        }
+        for (; group != null; group = getGroup(realm, group.parentId())) {
+          userMemberships.getEffectiveGroups().add(group.path());
+          effectiveRoles.addAll(group.effectiveRoleIds());
+        }
+      }
+      for (String roleId : roleIds.getOrDefault(user.getId(), Set.of())) {
+        Role role = getRole(realm, roleId);
+        if (role != null) {
+          role.addTo(userMemberships.getRealmRoles(), userMemberships.getClientRoles());
+          effectiveRoles.addAll(getEffectiveRoleIds(realm, roleId));
+        }
+      }
+      for (String roleId : effectiveRoles) {
+        getRole(realm, roleId).addTo(userMemberships.getEffectiveRealmRoles(),
+            userMemberships.getEffectiveClientRoles());
+      }
+      memberships.put(user.getId(), userMemberships);
+    }
+    return memberships;
+  }
+
+  private Group getGroup(RealmModel realm, String groupId) {
+    if (groupId == null) {
+      return null;
+    }
+    if (!groups.containsKey(groupId)) {
+      GroupModel group = session.groups().getGroupById(realm, groupId);
+      groups.put(groupId, group == null ? null : new Group(KeycloakModelUtils.buildGroupPath(group),
+          group.getParentId(), getEffectiveRoleIds(realm, group.getRoleMappingsStream().map(RoleModel::getId))));
+    }
+    return groups.get(groupId);
+  }
+
+  private Role getRole(RealmModel realm, String roleId) {
+    if (!roles.containsKey(roleId)) {
+      RoleModel role = session.roles().getRoleById(realm, roleId);
+      roles.put(roleId, role == null ? null : Role.of(role));
+    }
+    return roles.get(roleId);
+  }
+
+  private Set<String> getEffectiveRoleIds(RealmModel realm, Stream<String> roleIds) {
+    return roleIds.flatMap(roleId -> getEffectiveRoleIds(realm, roleId).stream()).collect(Collectors.toSet());
+  }
+
+  /**
+   * @return the id of the role and of all roles it is composed of, directly or indirectly
+   */
+  private Set<String> getEffectiveRoleIds(RealmModel realm, String roleId) {
+    Set<String> ids = effectiveRoleIds.get(roleId);
+    if (ids == null) {
+      RoleModel role = session.roles().getRoleById(realm, roleId);
+      ids = role == null ? Set.of() : RoleUtils.expandCompositeRolesStream(Stream.of(role))
+          .peek(composite -> roles.computeIfAbsent(composite.getId(), id -> Role.of(composite)))
+          .map(RoleModel::getId)
+          .collect(Collectors.toSet());
+      effectiveRoleIds.put(roleId, ids);
+    }
+    return ids;
+  }
+
+  private record Group(String path, String parentId, Set<String> effectiveRoleIds) {
+  }
+
+  /**
+   * @param clientId {@code null} for realm roles
+   */
+  private record Role(String name, String clientId) {
+
+    static Role of(RoleModel role) {
+      return new Role(role.getName(),
+          role.isClientRole() ? ((ClientModel) role.getContainer()).getClientId() : null);
+    }
+
+    void addTo(Set<String> realmRoles, SortedMap<String, SortedSet<String>> clientRoles) {
+      if (clientId == null) {
+        realmRoles.add(name);
+      } else {
+        clientRoles.computeIfAbsent(clientId, id -> new TreeSet<>()).add(name);
+      }
+    }
+  }
+}
@@ -0,0 +1,80 @@
+package de.conciso.keycloak.resource.admin;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import org.keycloak.connections.jpa.JpaConnectionProvider;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.UserModel;
+
+/**
+ * Resolves many (non-lightweight) users of a realm at once.
+ */
+interface BulkUserLookup {
+
+  /**
+   * Number of ids resolved together, small enough to stay below the IN-list limits of all supported databases.
+   */
+  int CHUNK_SIZE = 500;
+
+  /**
+   * Associations of a user that can be loaded together with the users instead of one by one on first access.
+   */
+  enum Fetch {
+    ATTRIBUTES,
+    REQUIRED_ACTIONS
+  }
+
+  /**
+   * @param fetch associations that will be accessed on the returned users
+   * @return the users that could be found, keyed by their id. Unknown ids are simply absent.
+   */
+  Map<String, UserModel> getUsersByIds(RealmModel realm, Collection<String> ids, Set<Fetch> fetch);
+
+  /**
+   * Exact, case-insensitive match like {@code session.users().getUserByUsername}.
+   *
+   * @return the users that could be found. Unknown usernames are simply absent.
+   */
+  Collection<UserModel> getUsersByUsernames(RealmModel realm, Collection<String> usernames, Set<Fetch> fetch);
+
+  /**
+   * Exact, case-insensitive match like {@code session.users().getUserByEmail}. If the realm allows duplicate emails,
+   * all users with a requested email are returned.
+   *
+   * @return the users that could be found. Unknown emails are simply absent.
+   */
+  Collection<UserModel> getUsersByEmails(RealmModel realm, Collection<String> emails, Set<Fetch> fetch);
+
+  /**
+   * @return the ids of the groups the given users are direct members of, keyed by user id
+   */
+  Map<String, Set<String>> getGroupIds(RealmModel realm, Collection<UserModel> users);
+
+  /**
+   * @return the ids of the realm and client roles directly mapped to the given users, keyed by user id
+   */
+  Map<String, Set<String>> getRoleIds(RealmModel realm, Collection<UserModel> users);
+
+  /**
+   * Reads the given attributes without loading the users where the store allows it. The fields username, email,
+   * firstName and lastName can be requested like attributes.
+   *
+   * @return the non-empty attributes of each user, keyed by user id. Unknown ids are simply absent.
+   */
+  Map<String, Map<String, List<String>>> getAttributes(RealmModel realm, Collection<String> ids, Set<String> names);
+
+  /**
+   * Uses batched queries against the JPA user store when it is available and falls back to one lookup per id
+   * otherwise.
+   */
+  static BulkUserLookup forSession(KeycloakSession session) {
+    JpaConnectionProvider jpa = session.getProvider(JpaConnectionProvider.class);
+    if (jpa == null) {
+      return new SingleUserLookup(session);
+    }
+    return new JpaBulkUserLookup(session, jpa.getEntityManager());
+  }
+}
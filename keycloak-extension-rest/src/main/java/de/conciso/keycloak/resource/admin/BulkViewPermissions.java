@@ -0,0 +1,92 @@
+package de.conciso.keycloak.resource.admin;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import org.keycloak.common.Profile;
+import org.keycloak.common.Profile.Feature;
+import org.keycloak.models.GroupModel;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.UserModel;
+import org.keycloak.services.resources.admin.fgap.AdminPermissionEvaluator;
+
+/**
+ * Decides for many users at once whether the admin may view them, evaluating each distinct decision only once.
+ * <ul>
+ *   <li>With realm-wide view permission no user needs to be checked.</li>
+ *   <li>With fine-grained admin permissions v1 the decision only depends on the groups of a user, so it is made once
+ *   per group and the memberships of all users are loaded in batches.</li>
+ *   <li>With fine-grained admin permissions v2 permissions can be granted per user, so every distinct user is
+ *   checked once.</li>
+ * </ul>
+ * Decisions are kept for the lifetime of one request.
+ */
+final class BulkViewPermissions {
+
+  private final KeycloakSession session;
+  private final AdminPermissionEvaluator auth;
+  private final BulkUserLookup userLookup;
+  private final Map<String, Boolean> groupDecisions = new HashMap<>();
+  private final Map<String, Boolean> userDecisions = new HashMap<>();
+  private Boolean canViewAll;
+
+  BulkViewPermissions(KeycloakSession session, AdminPermissionEvaluator auth, BulkUserLookup userLookup) {
+    this.session = session;
+    this.auth = auth;
+    this.userLookup = userLookup;
+  }
+
+  /**
+   * @return the ids of the given users the admin may not view
+   */
+  Set<String> getDenied(RealmModel realm, Collection<UserModel> users) {
+    Set<String> denied = new HashSet<>();
+    if (canViewAll() || users.isEmpty()) {
+      return denied;
+    }
+    if (Profile.isFeatureEnabled(Feature.ADMIN_FINE_GRAINED_AUTHZ_V2)) {
+      for (UserModel user : users) {
+        if (!userDecisions.computeIfAbsent(user.getId(), id -> auth.users().canView(user))) {
+          denied.add(user.getId());
+        }
+      }
+    } else if (Profile.isFeatureEnabled(Feature.ADMIN_FINE_GRAINED_AUTHZ)) {
+      Map<String, Set<String>> groupIds = userLookup.getGroupIds(realm, users);
+      for (UserModel user : users) {
+        if (groupIds.getOrDefault(user.getId(), Set.of()).stream().noneMatch(id -> canViewMembers(realm, id))) {
+          denied.add(user.getId());
+        }
+      }
+    } else {
+      users.forEach(user -> denied.add(user.getId()));
+    }
+    return denied;
+  }
+
+  /**
+   * @return whether the admin may view all users of the realm
+   */
+  boolean canViewAll() {
+    if (canViewAll == null) {
+      canViewAll = auth.users().canView();
+    }
+    return canViewAll;
+  }
+
+  /**
+   * Members of a group may be viewed if the admin may view the members of the group or of any of its parents.
+   */
+  private boolean canViewMembers(RealmModel realm, String groupId) {
+    Boolean decision = groupDecisions.get(groupId);
+    if (decision == null) {
+      GroupModel group = session.groups().getGroupById(realm, groupId);
+      decision = group != null && (auth.groups().canViewMembers(group)
+          || group.getParentId() != null && canViewMembers(realm, group.getParentId()));
+      groupDecisions.put(groupId, decision);
+    }
+    return decision;
+  }
+}
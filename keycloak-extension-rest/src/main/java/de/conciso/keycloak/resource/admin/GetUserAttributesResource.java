@@ -0,0 +1,126 @@
+package de.conciso.keycloak.resource.admin;
+
+import de.conciso.keycloak.resource.admin.BulkUserLookup.Fetch;
+import jakarta.ws.rs.BadRequestException;
+import jakarta.ws.rs.Consumes;
+import jakarta.ws.rs.GET;
+import jakarta.ws.rs.POST;
+import jakarta.ws.rs.Path;
+import jakarta.ws.rs.Produces;
+import jakarta.ws.rs.QueryParam;
+import jakarta.ws.rs.core.MediaType;
+import jakarta.ws.rs.core.Response;
+import jakarta.ws.rs.core.Response.Status;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.UUID;
+import org.jboss.logging.Logger;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.UserModel;
+import org.keycloak.services.resources.admin.fgap.AdminPermissionEvaluator;
+
+/**
+ * Returns selected attributes of many users at once, keyed by user id. Admins allowed to view all users of the realm
+ * get the attributes straight from the attribute store, for all others the users are loaded to check their
+ * permissions first. Like users-by-id, the request fails if one of the users does not exist or may not be viewed.
+ */
+public class GetUserAttributesResource {
+
+  private static final Logger log = Logger.getLogger(GetUserAttributesResource.class);
+
+  private final KeycloakSession session;
+  private final AdminPermissionEvaluator auth;
+
+  public GetUserAttributesResource(KeycloakSession session, AdminPermissionEvaluator auth) {
+    Objects.requireNonNull(session);
+    this.session = session;
+    Objects.requireNonNull(auth);
+    this.auth = auth;
+  }
+
+  @GET
+  @Path("")
+  @Produces({MediaType.APPLICATION_JSON})
+  public Response getAttributesByListOfIds(
+      @QueryParam("listWithIds") List<UUID> list,
+      @QueryParam("attributes") List<String> attributes) {
+    this.auth.users().requireQuery();
+    return getAttributes(list.iterator(), attributes);
+  }
+
+  @POST
+  @Path("")
+  @Consumes({MediaType.APPLICATION_JSON})
+  @Produces({MediaType.APPLICATION_JSON})
+  public Response getAttributesByJsonArrayOfIds(
+      InputStream body,
+      @QueryParam("attributes") List<String> attributes) {
+    this.auth.users().requireQuery();
+    return getAttributes(UserIdReader.fromJsonArray(body), attributes);
+  }
+
+  private Response getAttributes(Iterator<UUID> ids, List<String> attributes) {
+    Set<String> names = UserProjection.split(attributes);
+    if (names.isEmpty()) {
+      throw new BadRequestException("At least one attribute is required");
+    }
+    Map<String, Map<String, List<String>>> result = new LinkedHashMap<>();
+    if (!ids.hasNext()) {
+      return Response.status(Status.OK).entity(result).build();
+    }
+    RealmModel realm = session.getContext().getRealm();
+    BulkUserLookup userLookup = BulkUserLookup.forSession(session);
+    BulkViewPermissions viewPermissions = new BulkViewPermissions(session, auth, userLookup);
+    while (ids.hasNext()) {
+      List<String> chunk = new ArrayList<>(BulkUserLookup.CHUNK_SIZE);
+      while (ids.hasNext() && chunk.size() < BulkUserLookup.CHUNK_SIZE) {
+        chunk.add(ids.next().toString());
+      }
+      if (!viewPermissions.canViewAll()) {
+        requireView(realm, userLookup, viewPermissions, chunk);
+      }
+      Map<String, Map<String, List<String>>> attributesById = userLookup.getAttributes(realm, chunk, names);
+      for (String id : chunk) {
+        Map<String, List<String>> userAttributes = attributesById.get(id);
+        if (userAttributes == null) {
+          return notFound(id);
+        }
+        result.put(id, userAttributes);
+      }
+    }
+    return Response.status(Status.OK).entity(result).build();
+  }
+
+  /**
+   * Fails with the same errors as the regular admin API if one of the users does not exist or may not be viewed.
+   */
+  private void requireView(RealmModel realm, BulkUserLookup userLookup, BulkViewPermissions viewPermissions,
+      List<String> ids) {
+    Map<String, UserModel> users = userLookup.getUsersByIds(realm, ids, EnumSet.noneOf(Fetch.class));
+    Set<String> denied = viewPermissions.getDenied(realm, users.values());
+    for (String id : ids) {
+      UserModel user = users.get(id);
+      if (user == null) {
+        // checked again once the attributes have been read, so that unknown users always fail the same way
+        continue;
+      }
+      if (denied.contains(id)) {
+        auth.users().requireView(user);
+      }
+    }
+  }
+
+  private static Response notFound(String id) {
+    String errorMessage = "User with id " + id + " could not be Found";
+    log.error(errorMessage);
+    return Response.status(Status.NOT_FOUND).entity(errorMessage).build();
+  }
+}
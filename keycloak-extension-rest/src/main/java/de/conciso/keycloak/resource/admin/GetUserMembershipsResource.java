@@ -0,0 +1,100 @@
+package de.conciso.keycloak.resource.admin;
+
+import de.conciso.keycloak.resource.admin.BulkUserLookup.Fetch;
+import jakarta.ws.rs.Consumes;
+import jakarta.ws.rs.GET;
+import jakarta.ws.rs.POST;
+import jakarta.ws.rs.Path;
+import jakarta.ws.rs.Produces;
+import jakarta.ws.rs.QueryParam;
+import jakarta.ws.rs.core.MediaType;
+import jakarta.ws.rs.core.Response;
+import jakarta.ws.rs.core.Response.Status;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.UUID;
+import org.jboss.logging.Logger;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.UserModel;
+import org.keycloak.services.resources.admin.fgap.AdminPermissionEvaluator;
+
+/**
+ * Returns the direct and effective group and role memberships of many users at once, keyed by user id. Like
+ * users-by-id, the request fails if one of the users does not exist or may not be viewed by the admin.
+ */
+public class GetUserMembershipsResource {
+
+  private static final Logger log = Logger.getLogger(GetUserMembershipsResource.class);
+
+  private final KeycloakSession session;
+  private final AdminPermissionEvaluator auth;
+
+  public GetUserMembershipsResource(KeycloakSession session, AdminPermissionEvaluator auth) {
+    Objects.requireNonNull(session);
+    this.session = session;
+    Objects.requireNonNull(auth);
+    this.auth = auth;
+  }
+
+  @GET
+  @Path("")
+  @Produces({MediaType.APPLICATION_JSON})
+  public Response getMembershipsByListOfIds(@QueryParam("listWithIds") List<UUID> list) {
+    this.auth.users().requireQuery();
+    return getMemberships(list.iterator());
+  }
+
+  @POST
+  @Path("")
+  @Consumes({MediaType.APPLICATION_JSON})
+  @Produces({MediaType.APPLICATION_JSON})
+  public Response getMembershipsByJsonArrayOfIds(InputStream body) {
+    this.auth.users().requireQuery();
+    return getMemberships(UserIdReader.fromJsonArray(body));
+  }
+
+  private Response getMemberships(Iterator<UUID> ids) {
+    Map<String, UserMemberships> memberships = new LinkedHashMap<>();
+    if (!ids.hasNext()) {
+      return Response.status(Status.OK).entity(memberships).build();
+    }
+    RealmModel realm = session.getContext().getRealm();
+    BulkUserLookup userLookup = BulkUserLookup.forSession(session);
+    BulkViewPermissions viewPermissions = new BulkViewPermissions(session, auth, userLookup);
+    BulkMemberships bulkMemberships = new BulkMemberships(session, userLookup);
+    while (ids.hasNext()) {
+      List<String> chunk = new ArrayList<>(BulkUserLookup.CHUNK_SIZE);
+      while (ids.hasNext() && chunk.size() < BulkUserLookup.CHUNK_SIZE) {
+        chunk.add(ids.next().toString());
+      }
+      Map<String, UserModel> usersById = userLookup.getUsersByIds(realm, chunk, EnumSet.noneOf(Fetch.class));
+      List<UserModel> users = new ArrayList<>(chunk.size());
+      for (String id : chunk) {
+        UserModel user = usersById.get(id);
+        if (user == null) {
+          String errorMessage = "User with id " + id + " could not be Found";
+          log.error(errorMessage);
+          return Response.status(Status.NOT_FOUND).entity(errorMessage).build();
+        }
+        users.add(user);
+      }
+      Set<String> denied = viewPermissions.getDenied(realm, users);
+      for (UserModel user : users) {
+        if (denied.contains(user.getId())) {
+          // fails with the same error as the regular admin API
+          auth.users().requireView(user);
+        }
+      }
+      memberships.putAll(bulkMemberships.get(realm, users));
+    }
+    return Response.status(Status.OK).entity(memberships).build();
+  }
+}
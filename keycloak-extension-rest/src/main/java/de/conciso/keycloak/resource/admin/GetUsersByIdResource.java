@@ -1,74 +1,758 @@
 package de.conciso.keycloak.resource.admin;
 
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.util.RawValue;
+import com.fasterxml.jackson.dataformat.cbor.CBORFactory;
+import de.conciso.keycloak.resource.admin.BulkUserLookup.Fetch;
+import jakarta.ws.rs.BadRequestException;
+import jakarta.ws.rs.Consumes;
 import jakarta.ws.rs.GET;
+import jakarta.ws.rs.NotFoundException;
+import jakarta.ws.rs.POST;
 import jakarta.ws.rs.Path;
 import jakarta.ws.rs.Produces;
 import jakarta.ws.rs.QueryParam;
+import jakarta.ws.rs.core.EntityTag;
+import jakarta.ws.rs.core.HttpHeaders;
 import jakarta.ws.rs.core.MediaType;
 import jakarta.ws.rs.core.Response;
 import jakarta.ws.rs.core.Response.Status;
+import jakarta.ws.rs.core.StreamingOutput;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
+import java.util.Base64;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.Objects;
+import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.function.Function;
+import java.util.function.Supplier;
 import org.jboss.logging.Logger;
+import org.keycloak.http.HttpRequest;
+import org.keycloak.models.ClientModel;
+import org.keycloak.models.KeycloakContext;
 import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.RealmModel;
 import org.keycloak.models.UserModel;
-import org.keycloak.models.UserSessionModel;
 import org.keycloak.models.light.LightweightUserAdapter;
-import org.keycloak.models.utils.ModelToRepresentation;
+import org.keycloak.models.utils.KeycloakModelUtils;
 import org.keycloak.representations.idm.UserRepresentation;
+import org.keycloak.services.resources.admin.AdminAuth;
 import org.keycloak.services.resources.admin.fgap.AdminPermissionEvaluator;
+import org.keycloak.services.resources.admin.fgap.AdminPermissions;
+import org.keycloak.util.JsonSerialization;
 
 public class GetUsersByIdResource {
 
+  public static final String CONTINUATION_TOKEN_HEADER = "X-Continuation-Token";
+  public static final String APPLICATION_NDJSON = "application/x-ndjson";
+  public static final String APPLICATION_CBOR = "application/cbor";
+  private static final MediaType APPLICATION_NDJSON_TYPE = MediaType.valueOf(APPLICATION_NDJSON);
+  private static final MediaType APPLICATION_CBOR_TYPE = MediaType.valueOf(APPLICATION_CBOR);
+  private static final List<MediaType> FORMATS = List.of(MediaType.APPLICATION_JSON_TYPE, APPLICATION_NDJSON_TYPE,
+      APPLICATION_CBOR_TYPE);
+  private static final ObjectMapper CBOR_MAPPER = JsonSerialization.mapper.copyWith(new CBORFactory());
+  private static final long ENTITY_TAG_MAX_AGE_SECONDS = 60;
+  // without the provider factory changes are not reported, so entity tags only change when they expire
+  private static final UserChangeStamps UNREPORTED_CHANGES = new UserChangeStamps();
+
   private static final Logger log = Logger.getLogger(GetUsersByIdResource.class);
   private final KeycloakSession session;
   private final AdminPermissionEvaluator auth;
+  // null if caching is disabled
+  private final UserRepresentationCache cache;
+  private final UserChangeStamps changeStamps;
+  // null if no limit is configured
+  private final AdmissionControl admissionControl;
+  private final UsersByIdMetrics metrics;
+  // null if async requests run on the request thread
+  private final AsyncExecution asyncExecution;
+  // headers of the original request for async requests, read from the context otherwise
+  private RequestHeaders requestHeaders;
+  // whether all users are resolved before the response is handed over, since the session ends with the async thread
+  private boolean resolveBeforeWriting;
+  private BulkUserLookup userLookup;
+  private BulkViewPermissions viewPermissions;
+  // metrics of the current request
+  private UsersByIdMetrics.Request requestMetrics;
 
   public GetUsersByIdResource(KeycloakSession session, AdminPermissionEvaluator auth) {
+    this(session, auth, null, null, null, null, null);
+  }
+
+  GetUsersByIdResource(KeycloakSession session, AdminPermissionEvaluator auth, UserRepresentationCache cache,
+      UserChangeStamps changeStamps, AdmissionControl admissionControl, UsersByIdMetrics metrics,
+      AsyncExecution asyncExecution) {
     Objects.requireNonNull(session);
     this.session = session;
     Objects.requireNonNull(auth);
     this.auth = auth;
+    this.cache = cache;
+    this.changeStamps = changeStamps != null ? changeStamps : UNREPORTED_CHANGES;
+    this.admissionControl = admissionControl;
+    this.metrics = metrics != null ? metrics : UsersByIdMetrics.disabled();
+    this.asyncExecution = asyncExecution;
   }
 
 
   @GET
   @Path("")
-  @Produces({MediaType.APPLICATION_JSON})
+  @Produces({MediaType.APPLICATION_JSON, APPLICATION_NDJSON, APPLICATION_CBOR})
   public Response getAllUsersByListOfIds(
       @QueryParam("listWithIds") List<UUID> list,
-      @QueryParam("briefRepresentation") boolean briefRepresentation) {
+      @QueryParam("briefRepresentation") boolean briefRepresentation,
+      @QueryParam("fields") List<String> fields,
+      @QueryParam("attributes") List<String> attributes,
+      @QueryParam("stream") boolean stream,
+      @QueryParam("partial") boolean partial,
+      @QueryParam("max") Integer max,
+      @QueryParam("continuationToken") String continuationToken) {
+    this.auth.users().requireQuery();
+    UserRepresentationBuilder representation = UserRepresentationBuilder.of(session, briefRepresentation, fields,
+        attributes);
+    if (admissionControl != null) {
+      admissionControl.checkIdCount(max != null ? Math.min(max, list.size()) : list.size());
+    }
+    return admitted(() -> getPage(list.iterator(), representation, stream, partial, true, max, continuationToken));
+  }
+
+  @POST
+  @Path("")
+  @Consumes({MediaType.APPLICATION_JSON})
+  @Produces({MediaType.APPLICATION_JSON, APPLICATION_NDJSON, APPLICATION_CBOR})
+  public Response getAllUsersByJsonArrayOfIds(
+      InputStream body,
+      @QueryParam("briefRepresentation") boolean briefRepresentation,
+      @QueryParam("fields") List<String> fields,
+      @QueryParam("attributes") List<String> attributes,
+      @QueryParam("stream") boolean stream,
+      @QueryParam("partial") boolean partial,
+      @QueryParam("max") Integer max,
+      @QueryParam("continuationToken") String continuationToken) {
+    this.auth.users().requireQuery();
+    return getUsersOfBody(UserIdReader.fromJsonArray(body), briefRepresentation, fields, attributes, stream, partial,
+        max, continuationToken);
+  }
+
+  @POST
+  @Path("")
+  @Consumes({MediaType.TEXT_PLAIN})
+  @Produces({MediaType.APPLICATION_JSON, APPLICATION_NDJSON, APPLICATION_CBOR})
+  public Response getAllUsersByLinesOfIds(
+      InputStream body,
+      @QueryParam("briefRepresentation") boolean briefRepresentation,
+      @QueryParam("fields") List<String> fields,
+      @QueryParam("attributes") List<String> attributes,
+      @QueryParam("stream") boolean stream,
+      @QueryParam("partial") boolean partial,
+      @QueryParam("max") Integer max,
+      @QueryParam("continuationToken") String continuationToken) {
+    this.auth.users().requireQuery();
+    return getUsersOfBody(UserIdReader.fromLines(body), briefRepresentation, fields, attributes, stream, partial, max,
+        continuationToken);
+  }
+
+  /**
+   * Like {@link #getAllUsersByListOfIds}, but resolves the users on a thread pool of its own, so that the HTTP worker
+   * thread is free in the meantime. The session and transaction of the async thread end before the response is
+   * written, so streamed responses resolve all users of the request or page up front and only stream their
+   * serialization.
+   */
+  @GET
+  @Path("async")
+  @Produces({MediaType.APPLICATION_JSON, APPLICATION_NDJSON, APPLICATION_CBOR})
+  public CompletionStage<Response> getAllUsersByListOfIdsAsync(
+      @QueryParam("listWithIds") List<UUID> list,
+      @QueryParam("briefRepresentation") boolean briefRepresentation,
+      @QueryParam("fields") List<String> fields,
+      @QueryParam("attributes") List<String> attributes,
+      @QueryParam("stream") boolean stream,
+      @QueryParam("partial") boolean partial,
+      @QueryParam("max") Integer max,
+      @QueryParam("continuationToken") String continuationToken) {
     this.auth.users().requireQuery();
+    return async(resource -> resource.getAllUsersByListOfIds(list, briefRepresentation, fields, attributes, stream,
+        partial, max, continuationToken));
+  }
 
-    List<UserRepresentation> userRepresentations = new ArrayList<>();
-    for (UUID id : list) {
-      UserModel userModel = null;
-      if (LightweightUserAdapter.isLightweightUser(id.toString())) {
-        UserSessionModel userSession = session.sessions()
-            .getUserSession(session.getContext().getRealm(),
-                LightweightUserAdapter.getLightweightUserId(id.toString()));
-        if (userSession != null) {
-          userModel = userSession.getUser();
+  /**
+   * Like {@link #getAllUsersByJsonArrayOfIds}, but resolves the users like {@link #getAllUsersByListOfIdsAsync}. The
+   * ids are read on the async thread.
+   */
+  @POST
+  @Path("async")
+  @Consumes({MediaType.APPLICATION_JSON})
+  @Produces({MediaType.APPLICATION_JSON, APPLICATION_NDJSON, APPLICATION_CBOR})
+  public CompletionStage<Response> getAllUsersByJsonArrayOfIdsAsync(
+      InputStream body,
+      @QueryParam("briefRepresentation") boolean briefRepresentation,
+      @QueryParam("fields") List<String> fields,
+      @QueryParam("attributes") List<String> attributes,
+      @QueryParam("stream") boolean stream,
+      @QueryParam("partial") boolean partial,
+      @QueryParam("max") Integer max,
+      @QueryParam("continuationToken") String continuationToken) {
+    this.auth.users().requireQuery();
+    return async(resource -> resource.getUsersOfBody(UserIdReader.fromJsonArray(body), briefRepresentation, fields,
+        attributes, stream, partial, max, continuationToken));
+  }
+
+  /**
+   * Like {@link #getAllUsersByLinesOfIds}, but resolves the users like {@link #getAllUsersByListOfIdsAsync}. The ids
+   * are read on the async thread.
+   */
+  @POST
+  @Path("async")
+  @Consumes({MediaType.TEXT_PLAIN})
+  @Produces({MediaType.APPLICATION_JSON, APPLICATION_NDJSON, APPLICATION_CBOR})
+  public CompletionStage<Response> getAllUsersByLinesOfIdsAsync(
+      InputStream body,
+      @QueryParam("briefRepresentation") boolean briefRepresentation,
+      @QueryParam("fields") List<String> fields,
+      @QueryParam("attributes") List<String> attributes,
+      @QueryParam("stream") boolean stream,
+      @QueryParam("partial") boolean partial,
+      @QueryParam("max") Integer max,
+      @QueryParam("continuationToken") String continuationToken) {
+    this.auth.users().requireQuery();
+    return async(resource -> resource.getUsersOfBody(UserIdReader.fromLines(body), briefRepresentation, fields,
+        attributes, stream, partial, max, continuationToken));
+  }
+
+  /**
+   * Streamed responses resolve the ids while they are written, that is after the resource method returned. The body
+   * may not be read anymore by then, so streamed bodies require {@code max} and are read one page at a time before
+   * the response starts, which also bounds the ids held in memory.
+   */
+  private Response getUsersOfBody(Iterator<UUID> ids, boolean briefRepresentation, List<String> fields,
+      List<String> attributes, boolean stream, boolean partial, Integer max, String continuationToken) {
+    if (stream && max == null) {
+      throw new BadRequestException("stream requires max for ids in the request body");
+    }
+    UserRepresentationBuilder representation = UserRepresentationBuilder.of(session, briefRepresentation, fields,
+        attributes);
+    return admitted(() -> getPage(ids, representation, stream, partial, false, max, continuationToken));
+  }
+
+  /**
+   * Hands the request over to the async thread pool, where it runs with a session, transaction and permission
+   * evaluator of its own. Only plain representations are handed back, the response is written on a thread of the
+   * server once the session is closed. Without the pool the request runs right away.
+   */
+  private CompletionStage<Response> async(Function<GetUsersByIdResource, Response> request) {
+    if (asyncExecution == null) {
+      return CompletableFuture.completedFuture(request.apply(this));
+    }
+    KeycloakSessionFactory sessionFactory = session.getKeycloakSessionFactory();
+    KeycloakContext context = session.getContext();
+    RequestHeaders headers = requestHeaders();
+    AdminAuth adminAuth = auth.adminAuth();
+    return asyncExecution.submit(() -> KeycloakModelUtils.runJobInTransactionWithResult(sessionFactory, context,
+        asyncSession -> {
+          AdminPermissionEvaluator asyncAuth = AdminPermissions.evaluator(asyncSession,
+              asyncSession.getContext().getRealm(), adminAuth(asyncSession, adminAuth));
+          GetUsersByIdResource resource = new GetUsersByIdResource(asyncSession, asyncAuth, cache, changeStamps,
+              admissionControl, metrics, null);
+          resource.requestHeaders = headers;
+          resource.resolveBeforeWriting = true;
+          return request.apply(resource);
+        }, "users-by-id async request"));
+  }
+
+  /**
+   * @return the admin of the request with models of the given session
+   */
+  private static AdminAuth adminAuth(KeycloakSession session, AdminAuth adminAuth) {
+    RealmModel realm = session.realms().getRealm(adminAuth.getRealm().getId());
+    UserModel user = session.users().getUserById(realm, adminAuth.getUser().getId());
+    ClientModel client = session.clients().getClientById(realm, adminAuth.getClient().getId());
+    // lightweight admins only exist in the user session of their token
+    return new AdminAuth(realm, adminAuth.getToken(), user != null ? user : adminAuth.getUser(), client);
+  }
+
+  /**
+   * Runs the request once admission control lets it in. Streamed responses keep their slot until they are written
+   * or, should that never happen, until the session is closed.
+   *
+   * @return 429 if the request is rejected
+   */
+  private Response admitted(Supplier<Response> request) {
+    if (admissionControl == null) {
+      return request.get();
+    }
+    AdmissionControl.Permit permit = admissionControl.tryAcquire(session.getContext().getRealm().getId());
+    if (permit == null) {
+      log.warn("Rejecting users-by-id request, too many concurrent requests");
+      return Response.status(Status.TOO_MANY_REQUESTS)
+          .header(HttpHeaders.RETRY_AFTER, admissionControl.getRetryAfterSeconds())
+          .entity("Too many concurrent requests")
+          .build();
+    }
+    boolean streamed = false;
+    try {
+      Response response = request.get();
+      if (response.getEntity() instanceof StreamingOutput output) {
+        streamed = true;
+        session.enlistForClose(permit::release);
+        StreamingOutput releasing = out -> {
+          try {
+            output.write(out);
+          } finally {
+            permit.release();
+          }
+        };
+        return Response.fromResponse(response).entity(releasing).build();
+      }
+      return response;
+    } finally {
+      if (!streamed) {
+        permit.release();
+      }
+    }
+  }
+
+  /**
+   * Without {@code max} all ids are resolved at once. Otherwise only one page of them is, and the token for the next
+   * page is returned in the {@value #CONTINUATION_TOKEN_HEADER} header.
+   */
+  private Response getPage(Iterator<UUID> ids, UserRepresentationBuilder representation, boolean stream,
+      boolean partial, boolean conditional, Integer max, String continuationToken) {
+    if (max == null) {
+      if (continuationToken != null) {
+        throw new BadRequestException("continuationToken requires max");
+      }
+      return getUsers(admissionControl != null ? admissionControl.limit(ids) : ids, representation, stream, partial,
+          conditional);
+    }
+    IdPage page = IdPage.of(ids, max, continuationToken);
+    if (admissionControl != null) {
+      admissionControl.checkIdCount(page.getIds().size());
+    }
+    Response response = getUsers(page.getIds().iterator(), representation, stream, partial, conditional);
+    if (page.getNextToken() == null || response.getStatus() == Status.NOT_FOUND.getStatusCode()) {
+      return response;
+    }
+    return Response.fromResponse(response).header(CONTINUATION_TOKEN_HEADER, page.getNextToken()).build();
+  }
+
+  /**
+   * Resolves the ids chunk by chunk, so that only one chunk of ids and users is held at a time.
+   * <p>
+   * In streaming mode the first chunk is still resolved up front, so that unknown ids and missing permissions in it
+   * are reported with the proper status. Errors in later chunks abort the already started response.
+   * <p>
+   * In partial mode unknown ids and users the admin may not view are reported alongside the users instead of failing
+   * the request.
+   *
+   * @param conditional whether buffered JSON responses carry an entity tag and honor {@code If-None-Match}
+   */
+  private Response getUsers(Iterator<UUID> ids, UserRepresentationBuilder representation, boolean stream,
+      boolean partial, boolean conditional) {
+    MediaType format = negotiateFormat();
+    if (partial && format.equals(APPLICATION_NDJSON_TYPE)) {
+      throw new BadRequestException("Partial mode is not supported for " + APPLICATION_NDJSON);
+    }
+    List<Object> userRepresentations = new ArrayList<>();
+    UsersByIdResult partialResult = partial ? new UsersByIdResult(userRepresentations) : null;
+    if (!ids.hasNext()) {
+      if (!format.equals(MediaType.APPLICATION_JSON_TYPE)) {
+        return write(format, null, ids, representation, userRepresentations, partialResult);
+      }
+      return Response.status(Status.OK).entity(partial ? partialResult : userRepresentations).build();
+    }
+    RealmModel realm = session.getContext().getRealm();
+    requestMetrics = metrics.start(realm.getName(), representation);
+    boolean written = false;
+    try {
+      EntityTag entityTag = null;
+      // collects the tag while the users are resolved unless it had to be computed up front
+      MessageDigest tagDigest = null;
+      if (conditional && !stream && format.equals(MediaType.APPLICATION_JSON_TYPE)) {
+        String ifNoneMatch = requestHeaders().ifNoneMatch();
+        if (ifNoneMatch != null) {
+          List<UUID> idList = new ArrayList<>();
+          ids.forEachRemaining(idList::add);
+          entityTag = entityTag(realm, idList, representation, partial);
+          if (matches(ifNoneMatch, entityTag)) {
+            return Response.notModified(entityTag).build();
+          }
+          ids = idList.iterator();
+        } else {
+          tagDigest = startEntityTag(representation, partial);
         }
+      }
+      UUID unknownId = addNextChunk(realm, ids, representation, userRepresentations, partialResult, tagDigest);
+      if (unknownId != null) {
+        return notFound(unknownId);
+      }
+      if (stream && !resolveBeforeWriting) {
+        written = true;
+        return write(format, realm, ids, representation, userRepresentations, partialResult);
+      }
+      while (ids.hasNext()) {
+        unknownId = addNextChunk(realm, ids, representation, userRepresentations, partialResult, tagDigest);
+        if (unknownId != null) {
+          return notFound(unknownId);
+        }
+      }
+      if (!format.equals(MediaType.APPLICATION_JSON_TYPE)) {
+        written = true;
+        return write(format, realm, ids, representation, userRepresentations, partialResult);
+      }
+      if (tagDigest != null) {
+        entityTag = toEntityTag(tagDigest);
+      }
+      return Response.status(Status.OK).entity(partial ? partialResult : userRepresentations).tag(entityTag).build();
+    } finally {
+      // written responses are recorded once they are written
+      if (!written) {
+        requestMetrics.finish();
+      }
+    }
+  }
+
+  /**
+   * @return the first of the supported formats accepted by the client, JSON if there are no request headers
+   */
+  private MediaType negotiateFormat() {
+    for (MediaType acceptable : requestHeaders().acceptableMediaTypes()) {
+      for (MediaType format : FORMATS) {
+        if (acceptable.isCompatible(format)) {
+          return format;
+        }
+      }
+    }
+    return MediaType.APPLICATION_JSON_TYPE;
+  }
+
+  /**
+   * Writes the given users and then resolves and writes the remaining ids chunk by chunk.
+   */
+  private Response write(MediaType format, RealmModel realm, Iterator<UUID> ids,
+      UserRepresentationBuilder representation, List<Object> chunk, UsersByIdResult partialResult) {
+    StreamingOutput output = out -> {
+      try {
+        writeUsers(out, format, realm, ids, representation, chunk, partialResult);
+      } finally {
+        if (requestMetrics != null) {
+          requestMetrics.finish();
+        }
+      }
+    };
+    return Response.status(Status.OK).entity(output).type(format).build();
+  }
+
+  /**
+   * Computes the entity tag of the response before any representation is built, so that clients that already have the
+   * current users get a 304 for the cost of resolving the users without a cached representation.
+   */
+  private EntityTag entityTag(RealmModel realm, List<UUID> ids, UserRepresentationBuilder representation,
+      boolean partial) {
+    MessageDigest digest = startEntityTag(representation, partial);
+    long start = System.nanoTime();
+    boolean canViewAll = viewPermissions().canViewAll();
+    requestMetrics.addPermissionCheck(System.nanoTime() - start);
+    for (int from = 0; from < ids.size(); from += BulkUserLookup.CHUNK_SIZE) {
+      List<UUID> chunk = ids.subList(from, Math.min(ids.size(), from + BulkUserLookup.CHUNK_SIZE));
+      start = System.nanoTime();
+      Map<UUID, String> cached = canViewAll ? getCached(realm, chunk, representation) : Map.of();
+      List<UUID> toResolve = cached.isEmpty()
+          ? chunk
+          : chunk.stream().filter(id -> !cached.containsKey(id)).toList();
+      Map<String, UserModel> users = resolveUsers(realm, toResolve, EnumSet.noneOf(Fetch.class));
+      requestMetrics.addResolution(System.nanoTime() - start);
+      start = System.nanoTime();
+      Set<String> denied = viewPermissions().getDenied(realm, users.values());
+      requestMetrics.addPermissionCheck(System.nanoTime() - start);
+      for (UUID id : chunk) {
+        UserModel user = users.get(id.toString());
+        addToEntityTag(digest, id, cached.containsKey(id) || user != null,
+            user != null && denied.contains(user.getId()));
+      }
+    }
+    return toEntityTag(digest);
+  }
+
+  /**
+   * The tag covers the kind of representation and for each id whether the user exists and may be viewed and the
+   * {@link UserChangeStamps} of the user, so it can be derived for cached users without loading them. Changes not
+   * reported to this node, e.g. in a user federation, do not change the stamps, so tags expire after
+   * {@value #ENTITY_TAG_MAX_AGE_SECONDS} seconds.
+   */
+  private MessageDigest startEntityTag(UserRepresentationBuilder representation, boolean partial) {
+    MessageDigest digest;
+    try {
+      digest = MessageDigest.getInstance("SHA-256");
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+    digest.update((representation.getKind() + (partial ? ";partial" : "")).getBytes(StandardCharsets.UTF_8));
+    update(digest, changeStamps.generation());
+    update(digest, System.currentTimeMillis() / (ENTITY_TAG_MAX_AGE_SECONDS * 1000));
+    return digest;
+  }
+
+  private void addToEntityTag(MessageDigest digest, UUID id, boolean exists, boolean denied) {
+    update(digest, id.getMostSignificantBits());
+    update(digest, id.getLeastSignificantBits());
+    if (!exists || denied) {
+      digest.update((byte) (exists ? 1 : 0));
+      return;
+    }
+    digest.update((byte) 2);
+    update(digest, changeStamps.get(id.toString()));
+  }
+
+  private static void update(MessageDigest digest, long value) {
+    digest.update(ByteBuffer.allocate(Long.BYTES).putLong(value).array());
+  }
+
+  private static EntityTag toEntityTag(MessageDigest digest) {
+    return new EntityTag(Base64.getUrlEncoder().withoutPadding().encodeToString(digest.digest()));
+  }
+
+  private static boolean matches(String ifNoneMatch, EntityTag entityTag) {
+    for (String tag : ifNoneMatch.split(",")) {
+      tag = tag.strip();
+      // weak comparison as required for If-None-Match
+      if (tag.startsWith("W/")) {
+        tag = tag.substring(2);
+      }
+      if ("*".equals(tag) || ("\"" + entityTag.getValue() + "\"").equals(tag)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * JSON and CBOR are written as an array of users, or as the partial result object in partial mode. NDJSON is
+   * written as one user per line.
+   */
+  private void writeUsers(OutputStream out, MediaType format, RealmModel realm, Iterator<UUID> ids,
+      UserRepresentationBuilder representation,
+      List<Object> chunk, UsersByIdResult partialResult) throws IOException {
+    boolean cbor = format.equals(APPLICATION_CBOR_TYPE);
+    boolean lines = format.equals(APPLICATION_NDJSON_TYPE);
+    try (JsonGenerator generator = (cbor ? CBOR_MAPPER : JsonSerialization.mapper).createGenerator(out)) {
+      if (partialResult != null) {
+        generator.writeStartObject();
+        generator.writeFieldName("users");
+      }
+      if (lines) {
+        generator.setRootValueSeparator(null);
       } else {
-        userModel = session.users()
-            .getUserById(session.getContext().getRealm(), id.toString());
+        generator.writeStartArray();
+      }
+      while (true) {
+        long start = System.nanoTime();
+        for (Object userRepresentation : chunk) {
+          if (cbor && userRepresentation instanceof RawValue json) {
+            // cached representations are JSON, which cannot be embedded in CBOR as is
+            generator.writeTree(JsonSerialization.mapper.readTree(json.rawValue().toString()));
+          } else {
+            generator.writeObject(userRepresentation);
+          }
+          if (lines) {
+            generator.writeRaw('\n');
+          }
+        }
+        generator.flush();
+        if (requestMetrics != null) {
+          requestMetrics.addSerialization(System.nanoTime() - start);
+        }
+        if (!ids.hasNext()) {
+          break;
+        }
+        chunk.clear();
+        UUID unknownId = addNextChunk(realm, ids, representation, chunk, partialResult, null);
+        if (unknownId != null) {
+          log.error("User with id " + unknownId + " could not be Found, aborting streamed response");
+          throw new NotFoundException("User with id " + unknownId + " could not be Found");
+        }
       }
+      if (!lines) {
+        generator.writeEndArray();
+      }
+      if (partialResult != null) {
+        generator.writeObjectField("notFound", partialResult.getNotFound());
+        generator.writeObjectField("forbidden", partialResult.getForbidden());
+        generator.writeEndObject();
+      }
+    }
+  }
+
+  /**
+   * Resolves the next chunk of ids and adds the representations of the users to the given list. Representations
+   * taken from or put into the cache are added as raw JSON.
+   * <p>
+   * Users with a cached representation are only loaded if the admin may not view all users and permissions have to
+   * be checked per user.
+   *
+   * @param partialResult collects unknown and forbidden ids in partial mode, {@code null} otherwise
+   * @param tagDigest     collects the entity tag of the response or {@code null}
+   * @return the first id that could not be found or {@code null} if all users of the chunk were added
+   */
+  private UUID addNextChunk(RealmModel realm, Iterator<UUID> ids, UserRepresentationBuilder representation,
+      List<Object> userRepresentations, UsersByIdResult partialResult, MessageDigest tagDigest) {
+    List<UUID> chunk = new ArrayList<>(BulkUserLookup.CHUNK_SIZE);
+    while (ids.hasNext() && chunk.size() < BulkUserLookup.CHUNK_SIZE) {
+      chunk.add(ids.next());
+    }
+    requestMetrics.addIds(chunk.size());
+    long generation = cache != null ? cache.generation() : 0;
+    long start = System.nanoTime();
+    boolean canViewAll = viewPermissions().canViewAll();
+    requestMetrics.addPermissionCheck(System.nanoTime() - start);
+
+    start = System.nanoTime();
+    Map<UUID, String> cached = getCached(realm, chunk, representation);
+    List<UUID> toResolve = canViewAll && !cached.isEmpty()
+        ? chunk.stream().filter(id -> !cached.containsKey(id)).toList()
+        : chunk;
+    Map<String, UserModel> users = resolveUsers(realm, toResolve, representation.getFetch());
+    requestMetrics.addResolution(System.nanoTime() - start);
+
+    start = System.nanoTime();
+    Set<String> denied = viewPermissions().getDenied(realm, users.values());
+    requestMetrics.addPermissionCheck(System.nanoTime() - start);
+
+    for (UUID id : chunk) {
+      String json = cached.get(id);
+      if (tagDigest != null) {
+        UserModel user = users.get(id.toString());
+        addToEntityTag(tagDigest, id, (json != null && canViewAll) || user != null,
+            user != null && denied.contains(user.getId()));
+      }
+      if (json != null && canViewAll) {
+        userRepresentations.add(new RawValue(json));
+        continue;
+      }
+      UserModel userModel = users.get(id.toString());
       if (userModel == null) {
-        String errorMessage = "User with id " + id + " could not be Found";
-        log.error(errorMessage);
-        return Response.status(Status.NOT_FOUND).entity(errorMessage).build();
+        requestMetrics.notFound();
+        if (partialResult == null) {
+          return id;
+        }
+        partialResult.getNotFound().add(id);
+        continue;
       }
-      auth.users().requireView(userModel);
-      if (briefRepresentation) {
-        userRepresentations.add(ModelToRepresentation.toBriefRepresentation(userModel));
-      } else {
-        userRepresentations.add(ModelToRepresentation
-            .toRepresentation(session, session.getContext().getRealm(), userModel));
+      if (denied.contains(userModel.getId())) {
+        requestMetrics.forbidden();
+        if (partialResult == null) {
+          // fails with the same error as the regular admin API
+          auth.users().requireView(userModel);
+        } else {
+          partialResult.getForbidden().add(id);
+          continue;
+        }
       }
+      userRepresentations.add(json != null
+          ? new RawValue(json)
+          : toRepresentation(realm, userModel, representation, generation));
+    }
+    return null;
+  }
+
+  private Map<UUID, String> getCached(RealmModel realm, List<UUID> ids, UserRepresentationBuilder representation) {
+    if (cache == null) {
+      return Map.of();
+    }
+    Map<UUID, String> cached = new HashMap<>();
+    for (UUID id : ids) {
+      String json = cache.get(realm.getId(), id.toString(), representation.getKind());
+      if (json != null) {
+        cached.put(id, json);
+      }
+    }
+    return cached;
+  }
+
+  /**
+   * Lightweight users are not cached, they only live as long as their session and are not reported as changed.
+   */
+  private Object toRepresentation(RealmModel realm, UserModel user, UserRepresentationBuilder representation,
+      long generation) {
+    long start = System.nanoTime();
+    UserRepresentation userRepresentation = representation.toRepresentation(user);
+    requestMetrics.addRepresentation(System.nanoTime() - start);
+    if (cache == null || LightweightUserAdapter.isLightweightUser(user)) {
+      return userRepresentation;
+    }
+    try {
+      start = System.nanoTime();
+      String json = JsonSerialization.writeValueAsString(userRepresentation);
+      requestMetrics.addSerialization(System.nanoTime() - start);
+      cache.put(realm.getId(), user.getId(), representation.getKind(), json, generation);
+      return new RawValue(json);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  private RequestHeaders requestHeaders() {
+    return requestHeaders != null ? requestHeaders : RequestHeaders.of(session.getContext());
+  }
+
+  /**
+   * The request headers users-by-id depends on, read once so that async requests can take them to their thread.
+   */
+  private record RequestHeaders(List<MediaType> acceptableMediaTypes, String ifNoneMatch) {
+
+    static RequestHeaders of(KeycloakContext context) {
+      HttpRequest request = context != null ? context.getHttpRequest() : null;
+      HttpHeaders headers = request != null ? request.getHttpHeaders() : null;
+      if (headers == null) {
+        return new RequestHeaders(List.of(), null);
+      }
+      return new RequestHeaders(List.copyOf(headers.getAcceptableMediaTypes()),
+          headers.getHeaderString(HttpHeaders.IF_NONE_MATCH));
+    }
+  }
+
+  private static Response notFound(UUID id) {
+    String errorMessage = "User with id " + id + " could not be Found";
+    log.error(errorMessage);
+    return Response.status(Status.NOT_FOUND).entity(errorMessage).build();
+  }
+
+  /**
+   * Lightweight users only live in user sessions and their ids carry a {@code lightweight-} prefix, so they never pass
+   * the UUID parsing of the endpoints. All users are therefore loaded from the user store in batches.
+   */
+  private Map<String, UserModel> resolveUsers(RealmModel realm, List<UUID> ids, Set<Fetch> fetch) {
+    if (ids.isEmpty()) {
+      return Map.of();
+    }
+    return userLookup().getUsersByIds(realm, ids.stream().map(UUID::toString).toList(), fetch);
+  }
+
+  private BulkUserLookup userLookup() {
+    if (userLookup == null) {
+      userLookup = BulkUserLookup.forSession(session);
+    }
+    return userLookup;
+  }
+
+  private BulkViewPermissions viewPermissions() {
+    if (viewPermissions == null) {
+      viewPermissions = new BulkViewPermissions(session, auth, userLookup());
     }
-    return Response.status(Status.OK).entity(userRepresentations).build();
+    return viewPermissions;
   }
 }
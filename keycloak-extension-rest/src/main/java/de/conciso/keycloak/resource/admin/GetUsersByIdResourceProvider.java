@@ -12,9 +12,27 @@ public class GetUsersByIdResourceProvider implements AdminRealmResourceProvider,
     ServerInfoAwareProviderFactory {
 
   private final KeycloakSession session;
+  // null if caching is disabled
+  private final UserRepresentationCache cache;
+  private final UserChangeStamps changeStamps;
+  // null if no limit is configured
+  private final AdmissionControl admissionControl;
+  private final UsersByIdMetrics metrics;
+  // null if async requests run on the request thread
+  private final AsyncExecution asyncExecution;
 
   public GetUsersByIdResourceProvider(KeycloakSession session) {
+    this(session, null, null, null, UsersByIdMetrics.disabled(), null);
+  }
+
+  GetUsersByIdResourceProvider(KeycloakSession session, UserRepresentationCache cache, UserChangeStamps changeStamps,
+      AdmissionControl admissionControl, UsersByIdMetrics metrics, AsyncExecution asyncExecution) {
     this.session = session;
+    this.cache = cache;
+    this.changeStamps = changeStamps;
+    this.admissionControl = admissionControl;
+    this.metrics = metrics;
+    this.asyncExecution = asyncExecution;
   }
 
   @Override
@@ -24,12 +42,12 @@ public class GetUsersByIdResourceProvider implements AdminRealmResourceProvider,
 
   @Override
   public Map<String, String> getOperationalInfo() {
-    String version = getClass().getPackage().getImplementationVersion();
-    return Map.of("Version", version);
+    return GetUsersByIdResourceProviderFactory.operationalInfo(cache, metrics);
   }
 
   @Override
   public Object getResource(KeycloakSession keycloakSession, RealmModel realmModel, AdminPermissionEvaluator adminPermissionEvaluator, AdminEventBuilder adminEventBuilder) {
-    return new GetUsersByIdResource(session, adminPermissionEvaluator);
+    return new GetUsersByIdResource(session, adminPermissionEvaluator, cache, changeStamps, admissionControl, metrics,
+        asyncExecution);
   }
 }
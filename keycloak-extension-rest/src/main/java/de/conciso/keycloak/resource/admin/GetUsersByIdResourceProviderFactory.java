@@ -1,32 +1,137 @@
 package de.conciso.keycloak.resource.admin;
 
+import io.micrometer.core.instrument.Metrics;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import org.jboss.logging.Logger;
 import org.keycloak.Config;
+import org.keycloak.cluster.ClusterProvider;
 import org.keycloak.models.KeycloakSession;
 import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.UserModel;
+import org.keycloak.models.cache.infinispan.InfinispanUserCacheProviderFactory;
+import org.keycloak.models.cache.infinispan.events.InvalidationEvent;
+import org.keycloak.models.cache.infinispan.events.UserCacheRealmInvalidationEvent;
+import org.keycloak.provider.ProviderConfigProperty;
+import org.keycloak.provider.ProviderConfigurationBuilder;
+import org.keycloak.provider.ServerInfoAwareProviderFactory;
 import org.keycloak.services.resources.admin.ext.AdminRealmResourceProvider;
 import org.keycloak.services.resources.admin.ext.AdminRealmResourceProviderFactory;
 
-public class GetUsersByIdResourceProviderFactory implements AdminRealmResourceProviderFactory {
+public class GetUsersByIdResourceProviderFactory implements AdminRealmResourceProviderFactory,
+    ServerInfoAwareProviderFactory {
     public static final String ID = "users-by-id";
 
+    private static final Logger log = Logger.getLogger(GetUsersByIdResourceProviderFactory.class);
+    static final String CACHE_MAX_ENTRIES = "cacheMaxEntries";
+    static final String CACHE_TIME_TO_LIVE = "cacheTimeToLive";
+    static final String MAX_IDS_PER_REQUEST = "maxIdsPerRequest";
+    static final String MAX_CONCURRENT_REQUESTS_PER_REALM = "maxConcurrentRequestsPerRealm";
+    static final String ASYNC_MAX_CONCURRENT_REQUESTS = "asyncMaxConcurrentRequests";
+    static final String ASYNC_MAX_QUEUED_REQUESTS = "asyncMaxQueuedRequests";
+
+    // null if caching is disabled
+    private UserRepresentationCache cache;
+    private final UserChangeStamps changeStamps = new UserChangeStamps();
+    private volatile boolean clusterListenersRegistered;
+    // null if no limit is configured
+    private AdmissionControl admissionControl;
+    private final UsersByIdMetrics metrics = new UsersByIdMetrics(Metrics.globalRegistry);
+    // null if async requests run on the request thread
+    private AsyncExecution asyncExecution;
+
     @Override
     public AdminRealmResourceProvider create(KeycloakSession keycloakSession) {
-        return new GetUsersByIdResourceProvider(keycloakSession);
+        if (!clusterListenersRegistered) {
+            registerClusterListeners(keycloakSession);
+        }
+        return new GetUsersByIdResourceProvider(keycloakSession, cache, changeStamps, admissionControl, metrics,
+            asyncExecution);
     }
 
     @Override
     public void init(Config.Scope scope) {
-
+        int maxEntries = scope.getInt(CACHE_MAX_ENTRIES, 0);
+        if (maxEntries > 0) {
+            long timeToLive = scope.getLong(CACHE_TIME_TO_LIVE, 60L);
+            cache = new UserRepresentationCache(maxEntries, timeToLive * 1000);
+            log.infof("Caching up to %d users-by-id representations for %d seconds", maxEntries, timeToLive);
+        }
+        int maxIds = scope.getInt(MAX_IDS_PER_REQUEST, 0);
+        int maxConcurrent = scope.getInt(MAX_CONCURRENT_REQUESTS_PER_REALM, 0);
+        if (maxIds > 0 || maxConcurrent > 0) {
+            admissionControl = new AdmissionControl(maxIds, maxConcurrent);
+            log.infof("Limiting users-by-id to %d ids per request and %d concurrent requests per realm", maxIds,
+                maxConcurrent);
+        }
+        int asyncMaxConcurrent = scope.getInt(ASYNC_MAX_CONCURRENT_REQUESTS, 4);
+        if (asyncMaxConcurrent > 0) {
+            asyncExecution = new AsyncExecution(asyncMaxConcurrent, scope.getInt(ASYNC_MAX_QUEUED_REQUESTS, 16));
+        }
     }
 
     @Override
     public void postInit(KeycloakSessionFactory keycloakSessionFactory) {
+        keycloakSessionFactory.register(event -> {
+            if (event instanceof UserModel.UserRemovedEvent userRemoved) {
+                userChanged(userRemoved.getUser().getId());
+            } else if (event instanceof RealmModel.RealmRemovedEvent realmRemoved) {
+                realmChanged(realmRemoved.getRealm().getId());
+            }
+        });
+    }
+
+    /**
+     * Users changed on other nodes are reported by the invalidation messages of the Keycloak user cache. The cluster
+     * provider is not available during {@link #postInit}, so this happens on first use like in the user cache itself.
+     */
+    private synchronized void registerClusterListeners(KeycloakSession keycloakSession) {
+        if (clusterListenersRegistered) {
+            return;
+        }
+        ClusterProvider cluster = keycloakSession.getProvider(ClusterProvider.class);
+        if (cluster != null) {
+            cluster.registerListener(InfinispanUserCacheProviderFactory.USER_INVALIDATION_EVENTS, event -> {
+                if (event instanceof UserCacheRealmInvalidationEvent realmInvalidation) {
+                    realmChanged(realmInvalidation.getId());
+                } else if (event instanceof InvalidationEvent invalidation) {
+                    userChanged(invalidation.getId());
+                }
+            });
+            cluster.registerListener(InfinispanUserCacheProviderFactory.USER_CLEAR_CACHE_EVENTS, event -> {
+                changeStamps.changedAll();
+                if (cache != null) {
+                    cache.clear();
+                }
+            });
+        }
+        clusterListenersRegistered = true;
+    }
+
+    /**
+     * Updates the stamp of the user and removes it from the cache.
+     */
+    void userChanged(String userId) {
+        changeStamps.changed(userId);
+        if (cache != null) {
+            cache.invalidate(userId);
+        }
+    }
 
+    private void realmChanged(String realmId) {
+        changeStamps.changedAll();
+        if (cache != null) {
+            cache.invalidateRealm(realmId);
+        }
     }
 
     @Override
     public void close() {
-
+        if (asyncExecution != null) {
+            asyncExecution.close();
+        }
     }
 
     @Override
@@ -34,4 +139,68 @@ public class GetUsersByIdResourceProviderFactory implements AdminRealmResourcePr
         return ID;
     }
 
+    @Override
+    public Map<String, String> getOperationalInfo() {
+        return operationalInfo(cache, metrics);
+    }
+
+    /**
+     * @return the version and live stats of this node, shown in the server info
+     */
+    static Map<String, String> operationalInfo(UserRepresentationCache cache, UsersByIdMetrics metrics) {
+        Map<String, String> info = new LinkedHashMap<>();
+        String version = GetUsersByIdResourceProviderFactory.class.getPackage().getImplementationVersion();
+        if (version != null) {
+            info.put("Version", version);
+        }
+        info.putAll(metrics.getStats());
+        if (cache != null) {
+            info.putAll(cache.getStats());
+        }
+        return info;
+    }
+
+    @Override
+    public List<ProviderConfigProperty> getConfigMetadata() {
+        return ProviderConfigurationBuilder.create()
+            .property()
+            .name(CACHE_MAX_ENTRIES)
+            .type(ProviderConfigProperty.INTEGER_TYPE)
+            .helpText("Number of users whose representations are cached on each node, 0 disables the cache")
+            .defaultValue(0)
+            .add()
+            .property()
+            .name(CACHE_TIME_TO_LIVE)
+            .type(ProviderConfigProperty.INTEGER_TYPE)
+            .helpText("Seconds a cached representation is used at most")
+            .defaultValue(60)
+            .add()
+            .property()
+            .name(MAX_IDS_PER_REQUEST)
+            .type(ProviderConfigProperty.INTEGER_TYPE)
+            .helpText("Number of ids one request may resolve at most, larger requests are rejected with 413, "
+                + "0 means unlimited")
+            .defaultValue(0)
+            .add()
+            .property()
+            .name(MAX_CONCURRENT_REQUESTS_PER_REALM)
+            .type(ProviderConfigProperty.INTEGER_TYPE)
+            .helpText("Number of requests per realm running concurrently on each node, further requests are "
+                + "rejected with 429, 0 means unlimited")
+            .defaultValue(0)
+            .add()
+            .property()
+            .name(ASYNC_MAX_CONCURRENT_REQUESTS)
+            .type(ProviderConfigProperty.INTEGER_TYPE)
+            .helpText("Number of async requests resolved concurrently on each node, 0 runs them on the request thread")
+            .defaultValue(4)
+            .add()
+            .property()
+            .name(ASYNC_MAX_QUEUED_REQUESTS)
+            .type(ProviderConfigProperty.INTEGER_TYPE)
+            .helpText("Number of async requests waiting for a free thread, further requests are rejected with 429")
+            .defaultValue(16)
+            .add()
+            .build();
+    }
 }
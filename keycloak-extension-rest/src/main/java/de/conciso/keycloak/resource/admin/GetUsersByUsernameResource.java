@@ -0,0 +1,108 @@
+package de.conciso.keycloak.resource.admin;
+
+import de.conciso.keycloak.resource.admin.BulkUserLookup.Fetch;
+import jakarta.ws.rs.Consumes;
+import jakarta.ws.rs.GET;
+import jakarta.ws.rs.POST;
+import jakarta.ws.rs.Path;
+import jakarta.ws.rs.Produces;
+import jakarta.ws.rs.QueryParam;
+import jakarta.ws.rs.core.MediaType;
+import jakarta.ws.rs.core.Response;
+import jakarta.ws.rs.core.Response.Status;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Objects;
+import java.util.Set;
+import java.util.function.Function;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.UserModel;
+import org.keycloak.representations.idm.UserRepresentation;
+import org.keycloak.services.resources.admin.fgap.AdminPermissionEvaluator;
+
+/**
+ * Looks up many users by exact username or email at once. Like the search of the regular admin API, unknown names
+ * and users the admin may not view are left out of the result.
+ */
+public class GetUsersByUsernameResource {
+
+  private final KeycloakSession session;
+  private final AdminPermissionEvaluator auth;
+
+  public GetUsersByUsernameResource(KeycloakSession session, AdminPermissionEvaluator auth) {
+    Objects.requireNonNull(session);
+    this.session = session;
+    Objects.requireNonNull(auth);
+    this.auth = auth;
+  }
+
+  @GET
+  @Path("")
+  @Produces({MediaType.APPLICATION_JSON})
+  public Response getUsersByUsernamesOrEmails(
+      @QueryParam("username") List<String> usernames,
+      @QueryParam("email") List<String> emails,
+      @QueryParam("briefRepresentation") boolean briefRepresentation,
+      @QueryParam("fields") List<String> fields,
+      @QueryParam("attributes") List<String> attributes) {
+    this.auth.users().requireQuery();
+    UserRepresentationBuilder representation = UserRepresentationBuilder.of(session, briefRepresentation, fields,
+        attributes);
+    return getUsers(usernames, emails, representation);
+  }
+
+  @POST
+  @Path("")
+  @Consumes({MediaType.APPLICATION_JSON})
+  @Produces({MediaType.APPLICATION_JSON})
+  public Response getUsersByJsonOfUsernamesOrEmails(
+      UsersByUsernameRequest body,
+      @QueryParam("briefRepresentation") boolean briefRepresentation,
+      @QueryParam("fields") List<String> fields,
+      @QueryParam("attributes") List<String> attributes) {
+    this.auth.users().requireQuery();
+    UserRepresentationBuilder representation = UserRepresentationBuilder.of(session, briefRepresentation, fields,
+        attributes);
+    return getUsers(body.getUsernames(), body.getEmails(), representation);
+  }
+
+  /**
+   * Resolves usernames first and emails second, chunk by chunk. A user matched by several names is returned once.
+   */
+  private Response getUsers(List<String> usernames, List<String> emails, UserRepresentationBuilder representation) {
+    List<UserRepresentation> userRepresentations = new ArrayList<>();
+    if (usernames.isEmpty() && emails.isEmpty()) {
+      return Response.status(Status.OK).entity(userRepresentations).build();
+    }
+    RealmModel realm = session.getContext().getRealm();
+    BulkUserLookup userLookup = BulkUserLookup.forSession(session);
+    BulkViewPermissions viewPermissions = new BulkViewPermissions(session, auth, userLookup);
+    Set<Fetch> fetch = representation.getFetch();
+    Set<String> added = new HashSet<>();
+    addUsers(realm, usernames, chunk -> userLookup.getUsersByUsernames(realm, chunk, fetch), representation,
+        viewPermissions, added, userRepresentations);
+    addUsers(realm, emails, chunk -> userLookup.getUsersByEmails(realm, chunk, fetch), representation,
+        viewPermissions, added, userRepresentations);
+    return Response.status(Status.OK).entity(userRepresentations).build();
+  }
+
+  private void addUsers(RealmModel realm, List<String> names,
+      Function<List<String>, Collection<UserModel>> lookup, UserRepresentationBuilder representation,
+      BulkViewPermissions viewPermissions, Set<String> added, List<UserRepresentation> userRepresentations) {
+    for (int from = 0; from < names.size(); from += BulkUserLookup.CHUNK_SIZE) {
+      List<String> chunk = names.subList(from, Math.min(from + BulkUserLookup.CHUNK_SIZE, names.size()));
+      List<UserModel> users = lookup.apply(chunk).stream()
+          .filter(user -> !added.contains(user.getId()))
+          .toList();
+      Set<String> denied = viewPermissions.getDenied(realm, users);
+      for (UserModel user : users) {
+        if (!denied.contains(user.getId()) && added.add(user.getId())) {
+          userRepresentations.add(representation.toRepresentation(user));
+        }
+      }
+    }
+  }
+}
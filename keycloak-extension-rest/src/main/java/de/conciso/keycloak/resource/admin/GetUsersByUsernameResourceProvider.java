@@ -0,0 +1,26 @@
+package de.conciso.keycloak.resource.admin;
+
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.RealmModel;
+import org.keycloak.services.resources.admin.AdminEventBuilder;
+import org.keycloak.services.resources.admin.ext.AdminRealmResourceProvider;
+import org.keycloak.services.resources.admin.fgap.AdminPermissionEvaluator;
+
+public class GetUsersByUsernameResourceProvider implements AdminRealmResourceProvider {
+
+  private final KeycloakSession session;
+
+  public GetUsersByUsernameResourceProvider(KeycloakSession session) {
+    this.session = session;
+  }
+
+  @Override
+  public void close() {
+
+  }
+
+  @Override
+  public Object getResource(KeycloakSession keycloakSession, RealmModel realmModel, AdminPermissionEvaluator adminPermissionEvaluator, AdminEventBuilder adminEventBuilder) {
+    return new GetUsersByUsernameResource(session, adminPermissionEvaluator);
+  }
+}
@@ -0,0 +1,91 @@
+package de.conciso.keycloak.resource.admin;
+
+import jakarta.ws.rs.BadRequestException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Iterator;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * One page of a requested list of ids. The client sends the full list with every request together with the
+ * continuation token of the previous page, so no state is kept on the server between pages.
+ * <p>
+ * The token holds the offset of the page and the last id before it. That id is compared to the list again, so that a
+ * token used with a different list is rejected instead of silently returning the wrong page.
+ */
+final class IdPage {
+
+  private final List<UUID> ids;
+  // null on the last page
+  private final String nextToken;
+
+  private IdPage(List<UUID> ids, String nextToken) {
+    this.ids = ids;
+    this.nextToken = nextToken;
+  }
+
+  /**
+   * @param continuationToken token of the previous page or {@code null} for the first page
+   */
+  static IdPage of(Iterator<UUID> ids, int max, String continuationToken) {
+    if (max <= 0) {
+      throw new BadRequestException("max must be positive");
+    }
+    long offset = 0;
+    if (continuationToken != null) {
+      Token token = Token.decode(continuationToken);
+      UUID lastId = null;
+      while (offset < token.offset() && ids.hasNext()) {
+        lastId = ids.next();
+        offset++;
+      }
+      if (offset < token.offset() || !token.lastId().equals(lastId)) {
+        throw new BadRequestException("Continuation token does not match the list of ids");
+      }
+    }
+    List<UUID> page = new ArrayList<>(Math.min(max, BulkUserLookup.CHUNK_SIZE));
+    while (page.size() < max && ids.hasNext()) {
+      page.add(ids.next());
+    }
+    String nextToken = ids.hasNext()
+        ? new Token(offset + page.size(), page.get(page.size() - 1)).encode()
+        : null;
+    return new IdPage(page, nextToken);
+  }
+
+  List<UUID> getIds() {
+    return ids;
+  }
+
+  /**
+   * @return the token for the next page or {@code null} if this is the last page
+   */
+  String getNextToken() {
+    return nextToken;
+  }
+
+  private record Token(long offset, UUID lastId) {
+
+    String encode() {
+      String value = offset + ":" + lastId;
+      return Base64.getUrlEncoder().withoutPadding().encodeToString(value.getBytes(StandardCharsets.UTF_8));
+    }
+
+    static Token decode(String token) {
+      try {
+        String value = new String(Base64.getUrlDecoder().decode(token), StandardCharsets.UTF_8);
+        int separator = value.indexOf(':');
+        Token decoded = new Token(Long.parseLong(value.substring(0, separator)),
+            UUID.fromString(value.substring(separator + 1)));
+        if (decoded.offset() <= 0) {
+          throw new IllegalArgumentException("Offset must be positive");
+        }
+        return decoded;
+      } catch (IllegalArgumentException | IndexOutOfBoundsException e) {
+        throw new BadRequestException("Invalid continuation token", e);
+      }
+    }
+  }
+}
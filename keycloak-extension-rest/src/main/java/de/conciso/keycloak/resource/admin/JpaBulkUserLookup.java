@@ -0,0 +1,299 @@
+package de.conciso.keycloak.resource.admin;
+
+import jakarta.persistence.EntityManager;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Function;
+import org.infinispan.Cache;
+import org.keycloak.connections.infinispan.InfinispanConnectionProvider;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.UserModel;
+import org.keycloak.models.cache.UserCache;
+import org.keycloak.models.cache.infinispan.entities.CachedUser;
+import org.keycloak.models.cache.infinispan.entities.Revisioned;
+import org.keycloak.models.jpa.entities.UserEntity;
+import org.keycloak.models.light.LightweightUserAdapter;
+import org.keycloak.models.utils.KeycloakModelUtils;
+import org.keycloak.storage.StorageId;
+import org.keycloak.storage.UserStorageProvider;
+
+/**
+ * Loads users using one query per chunk of ids and requested association. Users requested by username or email are
+ * resolved to ids with one additional query per chunk.
+ * <p>
+ * The queries only fill the persistence context of the session. The users themselves are still resolved one by one
+ * through {@code session.users()}, so that they pass the user cache and the user storage providers like any other
+ * lookup. Cached users are returned from the cache, all others are found in the persistence context without further
+ * queries. Ids that are not found in the local store are queried one by one. Ids held by the local user cache are
+ * left out of the queries, so that a warm cache does not cost a round trip per chunk.
+ */
+final class JpaBulkUserLookup implements BulkUserLookup {
+
+  private static final String USERS_BY_IDS_QUERY =
+      "select u from UserEntity u where u.realmId = :realmId and u.id in :ids";
+  private static final String USERS_WITH_ATTRIBUTES_BY_IDS_QUERY =
+      "select distinct u from UserEntity u left join fetch u.attributes "
+          + "where u.realmId = :realmId and u.id in :ids";
+  // only initializes the collections of the users already loaded into the persistence context
+  private static final String USERS_WITH_REQUIRED_ACTIONS_BY_IDS_QUERY =
+      "select distinct u from UserEntity u left join fetch u.requiredActions "
+          + "where u.realmId = :realmId and u.id in :ids";
+
+  // usernames and emails are stored in lower case
+  private static final String USER_IDS_BY_USERNAMES_QUERY =
+      "select u.id, u.username from UserEntity u where u.realmId = :realmId and u.username in :values";
+  private static final String USER_IDS_BY_EMAILS_QUERY =
+      "select u.id, u.email from UserEntity u where u.realmId = :realmId and u.email in :values";
+
+  private static final String GROUP_IDS_BY_USER_IDS_QUERY =
+      "select m.user.id, m.groupId from UserGroupMembershipEntity m where m.user.id in :ids";
+  private static final String ROLE_IDS_BY_USER_IDS_QUERY =
+      "select m.user.id, m.roleId from UserRoleMappingEntity m where m.user.id in :ids";
+
+  // fields of the user entity that are exposed as attributes, in the order of the query below
+  private static final List<String> FIELD_ATTRIBUTES =
+      List.of(UserModel.USERNAME, UserModel.EMAIL, UserModel.FIRST_NAME, UserModel.LAST_NAME);
+  private static final String FIELDS_BY_IDS_QUERY =
+      "select u.id, u.federationLink, u.username, u.email, u.firstName, u.lastName from UserEntity u "
+          + "where u.realmId = :realmId and u.id in :ids";
+  // values too long for the value column are kept in the long value column instead
+  private static final String ATTRIBUTES_BY_USER_IDS_QUERY =
+      "select a.user.id, a.name, a.value, a.longValue from UserAttributeEntity a "
+          + "where a.user.id in :ids and a.name in :names";
+
+  private final KeycloakSession session;
+  private final EntityManager em;
+  private final Cache<String, Revisioned> userCache;
+
+  JpaBulkUserLookup(KeycloakSession session, EntityManager em) {
+    this.session = session;
+    this.em = em;
+    this.userCache = userCache(session);
+  }
+
+  /**
+   * @return the local cache of the user cache provider, {@code null} if the user cache is disabled
+   */
+  private static Cache<String, Revisioned> userCache(KeycloakSession session) {
+    if (session.getProvider(UserCache.class) == null) {
+      return null;
+    }
+    InfinispanConnectionProvider infinispan = session.getProvider(InfinispanConnectionProvider.class);
+    return infinispan != null ? infinispan.getCache(InfinispanConnectionProvider.USER_CACHE_NAME) : null;
+  }
+
+  @Override
+  public Map<String, UserModel> getUsersByIds(RealmModel realm, Collection<String> ids, Set<Fetch> fetch) {
+    List<String> idList = List.copyOf(ids);
+    Map<String, UserModel> users = new HashMap<>();
+    for (int from = 0; from < idList.size(); from += CHUNK_SIZE) {
+      List<String> chunk = uncached(realm, idList.subList(from, Math.min(from + CHUNK_SIZE, idList.size())));
+      if (chunk.isEmpty()) {
+        continue;
+      }
+      List<UserEntity> entities = prefetchUsers(fetch.contains(Fetch.ATTRIBUTES)
+          ? USERS_WITH_ATTRIBUTES_BY_IDS_QUERY : USERS_BY_IDS_QUERY, realm, chunk);
+      if (fetch.contains(Fetch.REQUIRED_ACTIONS) && !entities.isEmpty()) {
+        prefetchUsers(USERS_WITH_REQUIRED_ACTIONS_BY_IDS_QUERY, realm, chunk);
+      }
+    }
+    for (String id : idList) {
+      UserModel user = session.users().getUserById(realm, id);
+      if (user != null) {
+        users.put(id, user);
+      }
+    }
+    return users;
+  }
+
+  @Override
+  public Collection<UserModel> getUsersByUsernames(RealmModel realm, Collection<String> usernames,
+      Set<Fetch> fetch) {
+    return getUsersBy(USER_IDS_BY_USERNAMES_QUERY, realm, usernames, fetch,
+        username -> session.users().getUserByUsername(realm, username));
+  }
+
+  @Override
+  public Collection<UserModel> getUsersByEmails(RealmModel realm, Collection<String> emails, Set<Fetch> fetch) {
+    return getUsersBy(USER_IDS_BY_EMAILS_QUERY, realm, emails, fetch,
+        email -> session.users().getUserByEmail(realm, email));
+  }
+
+  /**
+   * Resolves the values to ids first and then loads the users like {@link #getUsersByIds}. Values not found in the
+   * local store are only looked up one by one if the realm has user storage providers that may know them.
+   */
+  private Collection<UserModel> getUsersBy(String idsQuery, RealmModel realm, Collection<String> values,
+      Set<Fetch> fetch, Function<String, UserModel> fallback) {
+    List<String> valueList = values.stream().map(KeycloakModelUtils::toLowerCaseSafe).distinct().toList();
+    List<String> ids = new ArrayList<>();
+    Set<String> found = new HashSet<>();
+    for (int from = 0; from < valueList.size(); from += CHUNK_SIZE) {
+      List<String> chunk = valueList.subList(from, Math.min(from + CHUNK_SIZE, valueList.size()));
+      List<Object[]> rows = em.createQuery(idsQuery, Object[].class)
+          .setParameter("realmId", realm.getId())
+          .setParameter("values", chunk)
+          .getResultList();
+      for (Object[] row : rows) {
+        ids.add((String) row[0]);
+        found.add((String) row[1]);
+      }
+    }
+
+    Map<String, UserModel> usersById = getUsersByIds(realm, ids, fetch);
+    Map<String, UserModel> users = new LinkedHashMap<>();
+    for (String id : ids) {
+      UserModel user = usersById.get(id);
+      if (user != null) {
+        users.put(id, user);
+      }
+    }
+    if (found.size() < valueList.size() && hasUserStorageProviders(realm)) {
+      for (String value : valueList) {
+        if (!found.contains(value)) {
+          UserModel user = fallback.apply(value);
+          if (user != null) {
+            users.put(user.getId(), user);
+          }
+        }
+      }
+    }
+    return users.values();
+  }
+
+  private static boolean hasUserStorageProviders(RealmModel realm) {
+    return realm.getComponentsStream(realm.getId(), UserStorageProvider.class.getName()).findAny().isPresent();
+  }
+
+  @Override
+  public Map<String, Set<String>> getGroupIds(RealmModel realm, Collection<UserModel> users) {
+    return getMappedIds(GROUP_IDS_BY_USER_IDS_QUERY, users,
+        otherUsers -> new SingleUserLookup(session).getGroupIds(realm, otherUsers));
+  }
+
+  @Override
+  public Map<String, Set<String>> getRoleIds(RealmModel realm, Collection<UserModel> users) {
+    return getMappedIds(ROLE_IDS_BY_USER_IDS_QUERY, users,
+        otherUsers -> new SingleUserLookup(session).getRoleIds(realm, otherUsers));
+  }
+
+  /**
+   * Reads the fields and attributes with scalar queries, so that neither users nor attribute entities are loaded into
+   * the persistence context.
+   */
+  @Override
+  public Map<String, Map<String, List<String>>> getAttributes(RealmModel realm, Collection<String> ids,
+      Set<String> names) {
+    List<String> idList = List.copyOf(ids);
+    List<String> storedNames = names.stream().filter(name -> !FIELD_ATTRIBUTES.contains(name)).toList();
+    Map<String, Map<String, List<String>>> attributes = new HashMap<>();
+    for (int from = 0; from < idList.size(); from += CHUNK_SIZE) {
+      List<String> chunk = idList.subList(from, Math.min(from + CHUNK_SIZE, idList.size()));
+      List<Object[]> users = em.createQuery(FIELDS_BY_IDS_QUERY, Object[].class)
+          .setParameter("realmId", realm.getId())
+          .setParameter("ids", chunk)
+          .getResultList();
+      List<String> storedIds = new ArrayList<>();
+      for (Object[] user : users) {
+        if (user[1] != null) {
+          // federated users are resolved through their provider below
+          continue;
+        }
+        Map<String, List<String>> userAttributes = new HashMap<>();
+        for (int i = 0; i < FIELD_ATTRIBUTES.size(); i++) {
+          if (user[i + 2] != null && names.contains(FIELD_ATTRIBUTES.get(i))) {
+            userAttributes.put(FIELD_ATTRIBUTES.get(i), List.of((String) user[i + 2]));
+          }
+        }
+        attributes.put((String) user[0], userAttributes);
+        storedIds.add((String) user[0]);
+      }
+      if (storedIds.isEmpty() || storedNames.isEmpty()) {
+        continue;
+      }
+      List<Object[]> values = em.createQuery(ATTRIBUTES_BY_USER_IDS_QUERY, Object[].class)
+          .setParameter("ids", storedIds)
+          .setParameter("names", storedNames)
+          .getResultList();
+      for (Object[] value : values) {
+        attributes.get((String) value[0])
+            .computeIfAbsent((String) value[1], name -> new ArrayList<>())
+            .add((String) (value[2] != null ? value[2] : value[3]));
+      }
+    }
+
+    List<String> unresolved = idList.stream().filter(id -> !attributes.containsKey(id)).toList();
+    if (!unresolved.isEmpty()) {
+      attributes.putAll(new SingleUserLookup(session).getAttributes(realm, unresolved, names));
+    }
+    return attributes;
+  }
+
+  /**
+   * Queries the (user id, mapped id) pairs of the stored users in chunks and asks the fallback for all others.
+   */
+  private Map<String, Set<String>> getMappedIds(String query, Collection<UserModel> users,
+      Function<List<UserModel>, Map<String, Set<String>>> fallback) {
+    Map<String, Set<String>> mappedIds = new HashMap<>();
+    List<String> storedUserIds = new ArrayList<>();
+    List<UserModel> otherUsers = new ArrayList<>();
+    for (UserModel user : users) {
+      // memberships and role mappings of federated and lightweight users are not (only) kept in the local store
+      if (isStored(user)) {
+        storedUserIds.add(user.getId());
+        mappedIds.put(user.getId(), new HashSet<>());
+      } else {
+        otherUsers.add(user);
+      }
+    }
+    for (int from = 0; from < storedUserIds.size(); from += CHUNK_SIZE) {
+      List<String> chunk = storedUserIds.subList(from, Math.min(from + CHUNK_SIZE, storedUserIds.size()));
+      List<Object[]> mappings = em.createQuery(query, Object[].class)
+          .setParameter("ids", chunk)
+          .getResultList();
+      for (Object[] mapping : mappings) {
+        mappedIds.get((String) mapping[0]).add((String) mapping[1]);
+      }
+    }
+    if (!otherUsers.isEmpty()) {
+      mappedIds.putAll(fallback.apply(otherUsers));
+    }
+    return mappedIds;
+  }
+
+  private static boolean isStored(UserModel user) {
+    return user.getFederationLink() == null && StorageId.isLocalStorage(user.getId())
+        && !LightweightUserAdapter.isLightweightUser(user.getId());
+  }
+
+  /**
+   * Leaves out the users the local user cache holds for the realm. Users the cache does not return after all, for
+   * example because they were changed within this session, are then queried one by one.
+   */
+  private List<String> uncached(RealmModel realm, List<String> ids) {
+    if (userCache == null) {
+      return ids;
+    }
+    return ids.stream()
+        .filter(id -> !(userCache.get(id) instanceof CachedUser cached && cached.getRealm().equals(realm.getId())))
+        .toList();
+  }
+
+  /**
+   * Loads the users into the persistence context as regular managed entities, so that later changes of the same users
+   * within this session are persisted as usual.
+   */
+  private List<UserEntity> prefetchUsers(String query, RealmModel realm, List<String> ids) {
+    return em.createQuery(query, UserEntity.class)
+        .setParameter("realmId", realm.getId())
+        .setParameter("ids", ids)
+        .getResultList();
+  }
+}
@@ -0,0 +1,98 @@
+package de.conciso.keycloak.resource.admin;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Collectors;
+import org.keycloak.models.GroupModel;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.RoleModel;
+import org.keycloak.models.UserModel;
+
+/**
+ * Fallback for user stores that cannot be queried in batches: one lookup per id, username or email.
+ */
+final class SingleUserLookup implements BulkUserLookup {
+
+  private final KeycloakSession session;
+
+  SingleUserLookup(KeycloakSession session) {
+    this.session = session;
+  }
+
+  @Override
+  public Map<String, UserModel> getUsersByIds(RealmModel realm, Collection<String> ids, Set<Fetch> fetch) {
+    Map<String, UserModel> users = new HashMap<>();
+    for (String id : ids) {
+      UserModel user = session.users().getUserById(realm, id);
+      if (user != null) {
+        users.put(id, user);
+      }
+    }
+    return users;
+  }
+
+  @Override
+  public Collection<UserModel> getUsersByUsernames(RealmModel realm, Collection<String> usernames,
+      Set<Fetch> fetch) {
+    Map<String, UserModel> users = new LinkedHashMap<>();
+    for (String username : usernames) {
+      UserModel user = session.users().getUserByUsername(realm, username);
+      if (user != null) {
+        users.put(user.getId(), user);
+      }
+    }
+    return users.values();
+  }
+
+  @Override
+  public Collection<UserModel> getUsersByEmails(RealmModel realm, Collection<String> emails, Set<Fetch> fetch) {
+    Map<String, UserModel> users = new LinkedHashMap<>();
+    for (String email : emails) {
+      UserModel user = session.users().getUserByEmail(realm, email);
+      if (user != null) {
+        users.put(user.getId(), user);
+      }
+    }
+    return users.values();
+  }
+
+  @Override
+  public Map<String, Set<String>> getGroupIds(RealmModel realm, Collection<UserModel> users) {
+    Map<String, Set<String>> groupIds = new HashMap<>();
+    for (UserModel user : users) {
+      groupIds.put(user.getId(), user.getGroupsStream().map(GroupModel::getId).collect(Collectors.toSet()));
+    }
+    return groupIds;
+  }
+
+  @Override
+  public Map<String, Set<String>> getRoleIds(RealmModel realm, Collection<UserModel> users) {
+    Map<String, Set<String>> roleIds = new HashMap<>();
+    for (UserModel user : users) {
+      roleIds.put(user.getId(), user.getRoleMappingsStream().map(RoleModel::getId).collect(Collectors.toSet()));
+    }
+    return roleIds;
+  }
+
+  @Override
+  public Map<String, Map<String, List<String>>> getAttributes(RealmModel realm, Collection<String> ids,
+      Set<String> names) {
+    Map<String, Map<String, List<String>>> attributes = new HashMap<>();
+    for (Map.Entry<String, UserModel> user : getUsersByIds(realm, ids, Set.of()).entrySet()) {
+      Map<String, List<String>> userAttributes = new HashMap<>();
+      for (String name : names) {
+        List<String> values = user.getValue().getAttributeStream(name).toList();
+        if (!values.isEmpty()) {
+          userAttributes.put(name, values);
+        }
+      }
+      attributes.put(user.getKey(), userAttributes);
+    }
+    return attributes;
+  }
+}
@@ -0,0 +1,47 @@
+package de.conciso.keycloak.resource.admin;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Stamps of the users changed on this node or reported as changed by other nodes, from which users-by-id derives its
+ * entity tags without building any representation. Keycloak only sets the last modified timestamp of users when they
+ * are created, so it does not tell whether a user changed since.
+ * <p>
+ * Users share the stamp of their slot with other users, so a change may also change the stamps of unchanged users but
+ * always changes the stamp of the changed one. The {@link #generation()} starts at a random value, so that stamps of
+ * different nodes and restarts do not match by accident. Entity tags derived from them therefore only match on the
+ * node that issued them, clients behind a load balancer only get a 304 with sticky sessions.
+ */
+final class UserChangeStamps {
+
+  private static final int SLOTS = 1 << 14;
+
+  private final AtomicLongArray stamps = new AtomicLongArray(SLOTS);
+  private final AtomicLong clock = new AtomicLong(ThreadLocalRandom.current().nextLong());
+  private volatile long generation = clock.get();
+
+  long get(String userId) {
+    return stamps.get(slot(userId));
+  }
+
+  /**
+   * @return a stamp that changes whenever all users are reported as changed at once
+   */
+  long generation() {
+    return generation;
+  }
+
+  void changed(String userId) {
+    stamps.set(slot(userId), clock.incrementAndGet());
+  }
+
+  void changedAll() {
+    generation = clock.incrementAndGet();
+  }
+
+  private static int slot(String userId) {
+    return userId.hashCode() & (SLOTS - 1);
+  }
+}
@@ -0,0 +1,103 @@
+package de.conciso.keycloak.resource.admin;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import jakarta.ws.rs.BadRequestException;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.UUID;
+import org.keycloak.util.JsonSerialization;
+
+/**
+ * Reads user ids from a request body one at a time, so that arbitrarily large lists never have to be held in memory.
+ */
+abstract class UserIdReader implements Iterator<UUID> {
+
+  private UUID next;
+
+  /**
+   * @return the next raw id or {@code null} if the body has been fully read
+   */
+  abstract String readNextId() throws IOException;
+
+  static UserIdReader fromJsonArray(InputStream body) {
+    final JsonParser parser;
+    try {
+      parser = JsonSerialization.mapper.getFactory().createParser(body);
+      if (parser.nextToken() != JsonToken.START_ARRAY) {
+        throw new BadRequestException("Expected a JSON array of user ids");
+      }
+    } catch (IOException e) {
+      throw new BadRequestException("Could not read list of user ids", e);
+    }
+    return new UserIdReader() {
+      @Override
+      String readNextId() throws IOException {
+        JsonToken token = parser.nextToken();
+        if (token == JsonToken.END_ARRAY || token == null) {
+          return null;
+        }
+        if (token != JsonToken.VALUE_STRING) {
+          throw new BadRequestException("Expected user id but found " + token);
+        }
+        return parser.getText();
+      }
+    };
+  }
+
+  static UserIdReader fromLines(InputStream body) {
+    BufferedReader reader = new BufferedReader(new InputStreamReader(body, StandardCharsets.UTF_8));
+    return new UserIdReader() {
+      @Override
+      String readNextId() throws IOException {
+        String line;
+        do {
+          line = reader.readLine();
+        } while (line != null && line.isBlank());
+        return line == null ? null : line.strip();
+      }
+    };
+  }
+
+  @Override
+  public boolean hasNext() {
+    if (next == null) {
+      next = parse(read());
+    }
+    return next != null;
+  }
+
+  @Override
+  public UUID next() {
+    if (!hasNext()) {
+      throw new NoSuchElementException();
+    }
+    UUID id = next;
+    next = null;
+    return id;
+  }
+
+  private String read() {
+    try {
+      return readNextId();
+    } catch (IOException e) {
+      throw new BadRequestException("Could not read list of user ids", e);
+    }
+  }
+
+  private static UUID parse(String id) {
+    if (id == null) {
+      return null;
+    }
+    try {
+      return UUID.fromString(id);
+    } catch (IllegalArgumentException e) {
+      throw new BadRequestException("Invalid user id " + id, e);
+    }
+  }
+}
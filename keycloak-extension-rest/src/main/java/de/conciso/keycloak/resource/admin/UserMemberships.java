@@ -0,0 +1,46 @@
+package de.conciso.keycloak.resource.admin;
+
+import java.util.SortedMap;
+import java.util.SortedSet;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * Group and role memberships of one user. Groups are given by path, client roles are keyed by client id.
+ * <p>
+ * Effective groups include the parents of the groups the user is a direct member of. Effective roles include the roles
+ * of all effective groups and all composite roles, like the composite role mappings of the regular admin API.
+ */
+public class UserMemberships {
+
+  private final SortedSet<String> groups = new TreeSet<>();
+  private final SortedSet<String> effectiveGroups = new TreeSet<>();
+  private final SortedSet<String> realmRoles = new TreeSet<>();
+  private final SortedSet<String> effectiveRealmRoles = new TreeSet<>();
+  private final SortedMap<String, SortedSet<String>> clientRoles = new TreeMap<>();
+  private final SortedMap<String, SortedSet<String>> effectiveClientRoles = new TreeMap<>();
+
+  public SortedSet<String> getGroups() {
+    return groups;
+  }
+
+  public SortedSet<String> getEffectiveGroups() {
+    return effectiveGroups;
+  }
+
+  public SortedSet<String> getRealmRoles() {
+    return realmRoles;
+  }
+
+  public SortedSet<String> getEffectiveRealmRoles() {
+    return effectiveRealmRoles;
+  }
+
+  public SortedMap<String, SortedSet<String>> getClientRoles() {
+    return clientRoles;
+  }
+
+  public SortedMap<String, SortedSet<String>> getEffectiveClientRoles() {
+    return effectiveClientRoles;
+  }
+}
@@ -0,0 +1,137 @@
+package de.conciso.keycloak.resource.admin;
+
+import de.conciso.keycloak.resource.admin.BulkUserLookup.Fetch;
+import jakarta.ws.rs.BadRequestException;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.function.BiConsumer;
+import org.keycloak.models.UserModel;
+import org.keycloak.representations.idm.UserRepresentation;
+
+/**
+ * Builds representations that only contain the requested fields and attributes. The id is always included.
+ */
+final class UserProjection implements UserRepresentationBuilder {
+
+  static final String ATTRIBUTES = "attributes";
+  static final String REQUIRED_ACTIONS = "requiredActions";
+
+  private static final Map<String, BiConsumer<UserModel, UserRepresentation>> FIELDS = new LinkedHashMap<>();
+
+  static {
+    FIELDS.put("username", (user, rep) -> rep.setUsername(user.getUsername()));
+    FIELDS.put("firstName", (user, rep) -> rep.setFirstName(user.getFirstName()));
+    FIELDS.put("lastName", (user, rep) -> rep.setLastName(user.getLastName()));
+    FIELDS.put("email", (user, rep) -> rep.setEmail(user.getEmail()));
+    FIELDS.put("emailVerified", (user, rep) -> rep.setEmailVerified(user.isEmailVerified()));
+    FIELDS.put("enabled", (user, rep) -> rep.setEnabled(user.isEnabled()));
+    FIELDS.put("createdTimestamp", (user, rep) -> rep.setCreatedTimestamp(user.getCreatedTimestamp()));
+    FIELDS.put("federationLink", (user, rep) -> rep.setFederationLink(user.getFederationLink()));
+    FIELDS.put(REQUIRED_ACTIONS, (user, rep) -> rep.setRequiredActions(user.getRequiredActionsStream().toList()));
+  }
+
+  private final Set<String> fields;
+  // null if all attributes are requested
+  private final Set<String> attributeNames;
+
+  private UserProjection(Set<String> fields, Set<String> attributeNames) {
+    this.fields = fields;
+    this.attributeNames = attributeNames;
+  }
+
+  /**
+   * @param fields     names of the representation fields to include, each entry may be a comma separated list
+   * @param attributes names of the attributes to include. Requesting the field {@value #ATTRIBUTES} without naming
+   *                   any attributes includes all of them.
+   */
+  static UserProjection of(List<String> fields, List<String> attributes) {
+    Set<String> requestedFields = split(fields);
+    for (String field : requestedFields) {
+      if (!FIELDS.containsKey(field) && !ATTRIBUTES.equals(field) && !"id".equals(field)) {
+        throw new BadRequestException("Unknown field " + field + ", supported are " + FIELDS.keySet()
+            + " and " + ATTRIBUTES);
+      }
+    }
+    Set<String> attributeNames = split(attributes);
+    if (!attributeNames.isEmpty()) {
+      requestedFields.add(ATTRIBUTES);
+      return new UserProjection(requestedFields, attributeNames);
+    }
+    return new UserProjection(requestedFields, null);
+  }
+
+  /**
+   * @return the distinct entries of the values, each of which may be a comma separated list
+   */
+  static Set<String> split(List<String> values) {
+    Set<String> result = new LinkedHashSet<>();
+    for (String value : values) {
+      Arrays.stream(value.split(","))
+          .map(String::strip)
+          .filter(s -> !s.isEmpty())
+          .forEach(result::add);
+    }
+    return result;
+  }
+
+  @Override
+  public UserRepresentation toRepresentation(UserModel user) {
+    UserRepresentation rep = new UserRepresentation();
+    rep.setId(user.getId());
+    FIELDS.forEach((field, setter) -> {
+      if (fields.contains(field)) {
+        setter.accept(user, rep);
+      }
+    });
+    if (fields.contains(ATTRIBUTES)) {
+      rep.setAttributes(attributesOf(user));
+    }
+    return rep;
+  }
+
+  private Map<String, List<String>> attributesOf(UserModel user) {
+    Map<String, List<String>> attributes = new HashMap<>();
+    if (attributeNames == null) {
+      attributes.putAll(user.getAttributes());
+      // these are already part of the representation itself
+      attributes.remove(UserModel.USERNAME);
+      attributes.remove(UserModel.EMAIL);
+      attributes.remove(UserModel.FIRST_NAME);
+      attributes.remove(UserModel.LAST_NAME);
+    } else {
+      for (String name : attributeNames) {
+        List<String> values = user.getAttributeStream(name).toList();
+        if (!values.isEmpty()) {
+          attributes.put(name, values);
+        }
+      }
+    }
+    return attributes;
+  }
+
+  @Override
+  public Set<Fetch> getFetch() {
+    Set<Fetch> fetch = EnumSet.noneOf(Fetch.class);
+    if (fields.contains(ATTRIBUTES)) {
+      fetch.add(Fetch.ATTRIBUTES);
+    }
+    if (fields.contains(REQUIRED_ACTIONS)) {
+      fetch.add(Fetch.REQUIRED_ACTIONS);
+    }
+    return fetch;
+  }
+
+  @Override
+  public String getKind() {
+    Set<String> sortedFields = new TreeSet<>(fields);
+    return "fields:" + String.join(",", sortedFields)
+        + (attributeNames == null ? "" : ";attributes:" + String.join(",", new TreeSet<>(attributeNames)));
+  }
+}
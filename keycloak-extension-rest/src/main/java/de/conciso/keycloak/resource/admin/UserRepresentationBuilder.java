@@ -0,0 +1,77 @@
+package de.conciso.keycloak.resource.admin;
+
+import de.conciso.keycloak.resource.admin.BulkUserLookup.Fetch;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Set;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.UserModel;
+import org.keycloak.models.utils.ModelToRepresentation;
+import org.keycloak.representations.idm.UserRepresentation;
+
+/**
+ * Builds the representations returned by users-by-id.
+ */
+interface UserRepresentationBuilder {
+
+  UserRepresentation toRepresentation(UserModel user);
+
+  /**
+   * @return associations accessed by {@link #toRepresentation(UserModel)}, so they can be loaded upfront
+   */
+  Set<Fetch> getFetch();
+
+  /**
+   * @return a name that identifies the shape of the representations, equal for builders producing equal output
+   */
+  String getKind();
+
+  static UserRepresentationBuilder brief() {
+    return new UserRepresentationBuilder() {
+      @Override
+      public UserRepresentation toRepresentation(UserModel user) {
+        return ModelToRepresentation.toBriefRepresentation(user);
+      }
+
+      @Override
+      public Set<Fetch> getFetch() {
+        return EnumSet.of(Fetch.ATTRIBUTES);
+      }
+
+      @Override
+      public String getKind() {
+        return "brief";
+      }
+    };
+  }
+
+  static UserRepresentationBuilder full(KeycloakSession session) {
+    return new UserRepresentationBuilder() {
+      @Override
+      public UserRepresentation toRepresentation(UserModel user) {
+        return ModelToRepresentation.toRepresentation(session, session.getContext().getRealm(), user);
+      }
+
+      @Override
+      public Set<Fetch> getFetch() {
+        return EnumSet.of(Fetch.ATTRIBUTES, Fetch.REQUIRED_ACTIONS);
+      }
+
+      @Override
+      public String getKind() {
+        return "full";
+      }
+    };
+  }
+
+  /**
+   * A projection takes precedence over the brief flag if any fields or attributes are requested.
+   */
+  static UserRepresentationBuilder of(KeycloakSession session, boolean briefRepresentation, List<String> fields,
+      List<String> attributes) {
+    if (!fields.isEmpty() || !attributes.isEmpty()) {
+      return UserProjection.of(fields, attributes);
+    }
+    return briefRepresentation ? brief() : full(session);
+  }
+}
@@ -0,0 +1,128 @@
+package de.conciso.keycloak.resource.admin;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import org.keycloak.common.util.Time;
+
+/**
+ * Node-local cache of serialized users-by-id representations, bounded in the number of users and evicting the least
+ * recently used user first. Users are identified by their id alone, which is also what cluster invalidation messages
+ * carry. Representations of one user are cached per representation kind and expire after the time to live.
+ * <p>
+ * Entries are removed when a user changes, see {@link UsersByIdCacheInvalidationListenerFactory}. To not cache
+ * representations that were built while the user changed, {@link #put} is skipped if any invalidation happened since
+ * the {@link #generation()} taken before the users were loaded.
+ */
+final class UserRepresentationCache {
+
+  // bounds the number of projections cached per user, projections are chosen by the client
+  static final int MAX_KINDS_PER_USER = 8;
+
+  private final int maxEntries;
+  private final long timeToLiveMillis;
+  private final Map<String, Entry> entries;
+  private final AtomicLong generation = new AtomicLong();
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+  private final AtomicLong evictions = new AtomicLong();
+
+  UserRepresentationCache(int maxEntries, long timeToLiveMillis) {
+    this.maxEntries = maxEntries;
+    this.timeToLiveMillis = timeToLiveMillis;
+    this.entries = new LinkedHashMap<>(16, 0.75f, true) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+        if (size() > UserRepresentationCache.this.maxEntries) {
+          evictions.incrementAndGet();
+          return true;
+        }
+        return false;
+      }
+    };
+  }
+
+  /**
+   * @return the cached representation or {@code null} if there is none or it expired
+   */
+  synchronized String get(String realmId, String userId, String kind) {
+    Entry entry = entries.get(userId);
+    Cached cached = entry != null && entry.realmId().equals(realmId) ? entry.kinds().get(kind) : null;
+    if (cached == null) {
+      misses.incrementAndGet();
+      return null;
+    }
+    if (cached.expiresAt() <= Time.currentTimeMillis()) {
+      entry.kinds().remove(kind);
+      if (entry.kinds().isEmpty()) {
+        entries.remove(userId);
+      }
+      evictions.incrementAndGet();
+      misses.incrementAndGet();
+      return null;
+    }
+    hits.incrementAndGet();
+    return cached.json();
+  }
+
+  long generation() {
+    return generation.get();
+  }
+
+  /**
+   * @param generation the {@link #generation()} taken before the user was loaded
+   */
+  synchronized void put(String realmId, String userId, String kind, String json, long generation) {
+    if (generation != this.generation.get()) {
+      return;
+    }
+    Entry entry = entries.get(userId);
+    if (entry == null || !entry.realmId().equals(realmId)) {
+      entry = new Entry(realmId, new HashMap<>(4));
+      entries.put(userId, entry);
+    }
+    Map<String, Cached> kinds = entry.kinds();
+    if (kinds.size() >= MAX_KINDS_PER_USER && !kinds.containsKey(kind)) {
+      kinds.clear();
+      evictions.incrementAndGet();
+    }
+    kinds.put(kind, new Cached(json, Time.currentTimeMillis() + timeToLiveMillis));
+  }
+
+  synchronized void invalidate(String userId) {
+    generation.incrementAndGet();
+    entries.remove(userId);
+  }
+
+  synchronized void invalidateRealm(String realmId) {
+    generation.incrementAndGet();
+    entries.values().removeIf(entry -> entry.realmId().equals(realmId));
+  }
+
+  synchronized void clear() {
+    generation.incrementAndGet();
+    entries.clear();
+  }
+
+  synchronized int size() {
+    return entries.size();
+  }
+
+  Map<String, String> getStats() {
+    Map<String, String> stats = new LinkedHashMap<>();
+    stats.put("cache.maxEntries", String.valueOf(maxEntries));
+    stats.put("cache.timeToLiveSeconds", String.valueOf(timeToLiveMillis / 1000));
+    stats.put("cache.entries", String.valueOf(size()));
+    stats.put("cache.hits", String.valueOf(hits.get()));
+    stats.put("cache.misses", String.valueOf(misses.get()));
+    stats.put("cache.evictions", String.valueOf(evictions.get()));
+    return stats;
+  }
+
+  private record Entry(String realmId, Map<String, Cached> kinds) {
+  }
+
+  private record Cached(String json, long expiresAt) {
+  }
+}
@@ -0,0 +1,97 @@
+package de.conciso.keycloak.resource.admin;
+
+import java.util.EnumSet;
+import java.util.HashSet;
+import java.util.Set;
+import org.keycloak.events.Event;
+import org.keycloak.events.EventListenerProvider;
+import org.keycloak.events.EventType;
+import org.keycloak.events.admin.AdminEvent;
+import org.keycloak.events.admin.OperationType;
+import org.keycloak.events.admin.ResourceType;
+import org.keycloak.models.AbstractKeycloakTransaction;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakTransactionManager;
+
+/**
+ * Removes users changed on this node from the {@link UserRepresentationCache} and updates their
+ * {@link UserChangeStamps}. Changes on other nodes arrive as cluster invalidation messages instead, see
+ * {@link GetUsersByIdResourceProviderFactory}.
+ * <p>
+ * Events are sent before the transaction of the change commits, so the users are only removed after the commit.
+ * Removing them right away would let a concurrent request put the old representation back into the cache.
+ */
+final class UsersByIdCacheInvalidationListener implements EventListenerProvider {
+
+  // user events after which the representation of the user may have changed, logins update the last login attribute
+  static final Set<EventType> USER_CHANGING_EVENTS = EnumSet.of(
+      EventType.LOGIN,
+      EventType.CLIENT_LOGIN,
+      EventType.UPDATE_PROFILE,
+      EventType.UPDATE_EMAIL,
+      EventType.VERIFY_EMAIL,
+      EventType.VERIFY_PROFILE,
+      EventType.RESET_PASSWORD,
+      EventType.UPDATE_CREDENTIAL,
+      EventType.REMOVE_CREDENTIAL,
+      EventType.DELETE_ACCOUNT);
+
+  private final KeycloakSession session;
+  private final GetUsersByIdResourceProviderFactory usersById;
+  // users to remove once the transaction of the session committed, null until the first change
+  private Set<String> changedUserIds;
+
+  UsersByIdCacheInvalidationListener(KeycloakSession session, GetUsersByIdResourceProviderFactory usersById) {
+    this.session = session;
+    this.usersById = usersById;
+  }
+
+  @Override
+  public void onEvent(Event event) {
+    if (event.getUserId() != null && USER_CHANGING_EVENTS.contains(event.getType())) {
+      invalidateAfterCommit(event.getUserId());
+    }
+  }
+
+  @Override
+  public void onEvent(AdminEvent adminEvent, boolean includeRepresentation) {
+    if (adminEvent.getResourceType() != ResourceType.USER
+        || adminEvent.getOperationType() == OperationType.CREATE
+        || adminEvent.getResourcePath() == null) {
+      return;
+    }
+    // users/{id} or a sub resource of it
+    String[] path = adminEvent.getResourcePath().split("/");
+    if (path.length > 1 && "users".equals(path[0])) {
+      invalidateAfterCommit(path[1]);
+    }
+  }
+
+  private void invalidateAfterCommit(String userId) {
+    KeycloakTransactionManager transaction = session.getTransactionManager();
+    if (!transaction.isActive()) {
+      usersById.userChanged(userId);
+      return;
+    }
+    if (changedUserIds == null) {
+      changedUserIds = new HashSet<>();
+      transaction.enlistAfterCompletion(new AbstractKeycloakTransaction() {
+        @Override
+        protected void commitImpl() {
+          changedUserIds.forEach(usersById::userChanged);
+        }
+
+        @Override
+        protected void rollbackImpl() {
+
+        }
+      });
+    }
+    changedUserIds.add(userId);
+  }
+
+  @Override
+  public void close() {
+
+  }
+}
@@ -0,0 +1,72 @@
+package de.conciso.keycloak.resource.admin;
+
+import org.keycloak.Config;
+import org.keycloak.events.Event;
+import org.keycloak.events.EventListenerProvider;
+import org.keycloak.events.EventListenerProviderFactory;
+import org.keycloak.events.admin.AdminEvent;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.services.resources.admin.ext.AdminRealmResourceProvider;
+
+/**
+ * Global event listener, so the users-by-id cache and entity tags are kept up to date without enabling a listener in
+ * every realm.
+ */
+public class UsersByIdCacheInvalidationListenerFactory implements EventListenerProviderFactory {
+
+  public static final String ID = "users-by-id-cache-invalidation";
+
+  private static final EventListenerProvider NOOP = new EventListenerProvider() {
+    @Override
+    public void onEvent(Event event) {
+
+    }
+
+    @Override
+    public void onEvent(AdminEvent adminEvent, boolean includeRepresentation) {
+
+    }
+
+    @Override
+    public void close() {
+
+    }
+  };
+
+  // null if users-by-id is not deployed
+  private GetUsersByIdResourceProviderFactory usersById;
+
+  @Override
+  public EventListenerProvider create(KeycloakSession keycloakSession) {
+    return usersById != null ? new UsersByIdCacheInvalidationListener(keycloakSession, usersById) : NOOP;
+  }
+
+  @Override
+  public void init(Config.Scope scope) {
+
+  }
+
+  @Override
+  public void postInit(KeycloakSessionFactory keycloakSessionFactory) {
+    if (keycloakSessionFactory.getProviderFactory(AdminRealmResourceProvider.class,
+        GetUsersByIdResourceProviderFactory.ID) instanceof GetUsersByIdResourceProviderFactory factory) {
+      usersById = factory;
+    }
+  }
+
+  @Override
+  public boolean isGlobal() {
+    return true;
+  }
+
+  @Override
+  public void close() {
+
+  }
+
+  @Override
+  public String getId() {
+    return ID;
+  }
+}
@@ -0,0 +1,165 @@
+package de.conciso.keycloak.resource.admin;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.composite.CompositeMeterRegistry;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Metrics of users-by-id, tagged by realm and representation mode. Times are summed up per request and recorded once
+ * the request is done. Node-wide totals are kept in addition for the server info.
+ */
+final class UsersByIdMetrics {
+
+  private static final String PREFIX = "keycloak.users_by_id";
+
+  private final MeterRegistry registry;
+  private final LongAdder requests = new LongAdder();
+  private final LongAdder ids = new LongAdder();
+  private final LongAdder notFound = new LongAdder();
+  private final LongAdder forbidden = new LongAdder();
+  private final LongAdder resolutionNanos = new LongAdder();
+  private final LongAdder permissionCheckNanos = new LongAdder();
+  private final LongAdder representationNanos = new LongAdder();
+  private final LongAdder serializationNanos = new LongAdder();
+
+  UsersByIdMetrics(MeterRegistry registry) {
+    this.registry = registry;
+  }
+
+  /**
+   * @return metrics that are only kept for the server info
+   */
+  static UsersByIdMetrics disabled() {
+    return new UsersByIdMetrics(new CompositeMeterRegistry());
+  }
+
+  Request start(String realm, UserRepresentationBuilder representation) {
+    String kind = representation.getKind();
+    String mode = "brief".equals(kind) || "full".equals(kind) ? kind : "projection";
+    return new Request(Objects.requireNonNullElse(realm, "unknown"), mode);
+  }
+
+  Map<String, String> getStats() {
+    long requestCount = requests.sum();
+    Map<String, String> stats = new LinkedHashMap<>();
+    stats.put("requests", String.valueOf(requestCount));
+    stats.put("ids", String.valueOf(ids.sum()));
+    stats.put("notFound", String.valueOf(notFound.sum()));
+    stats.put("forbidden", String.valueOf(forbidden.sum()));
+    stats.put("resolution.avgMillis", averageMillis(resolutionNanos, requestCount));
+    stats.put("permissionCheck.avgMillis", averageMillis(permissionCheckNanos, requestCount));
+    stats.put("representation.avgMillis", averageMillis(representationNanos, requestCount));
+    stats.put("serialization.avgMillis", averageMillis(serializationNanos, requestCount));
+    return stats;
+  }
+
+  private static String averageMillis(LongAdder nanos, long count) {
+    return count == 0 ? "0" : String.format("%.3f", nanos.sum() / 1_000_000.0 / count);
+  }
+
+  /**
+   * Collects the metrics of one request, not thread-safe.
+   */
+  final class Request {
+
+    private final String realm;
+    private final String mode;
+    private int idCount;
+    private int notFoundCount;
+    private int forbiddenCount;
+    private long resolution;
+    private long permissionCheck;
+    private long representation;
+    private long serialization;
+    private boolean finished;
+
+    private Request(String realm, String mode) {
+      this.realm = realm;
+      this.mode = mode;
+    }
+
+    void addIds(int count) {
+      idCount += count;
+    }
+
+    void notFound() {
+      notFoundCount++;
+    }
+
+    void forbidden() {
+      forbiddenCount++;
+    }
+
+    void addResolution(long nanos) {
+      resolution += nanos;
+    }
+
+    void addPermissionCheck(long nanos) {
+      permissionCheck += nanos;
+    }
+
+    void addRepresentation(long nanos) {
+      representation += nanos;
+    }
+
+    void addSerialization(long nanos) {
+      serialization += nanos;
+    }
+
+    /**
+     * Records the request, only the first call has an effect.
+     */
+    void finish() {
+      if (finished) {
+        return;
+      }
+      finished = true;
+      DistributionSummary.builder(PREFIX + ".ids")
+          .description("Number of ids per request")
+          .tags("realm", realm, "mode", mode)
+          .publishPercentileHistogram()
+          .register(registry)
+          .record(idCount);
+      timer("resolution", "Time spent loading users").record(resolution, TimeUnit.NANOSECONDS);
+      timer("permission_check", "Time spent checking view permissions")
+          .record(permissionCheck, TimeUnit.NANOSECONDS);
+      timer("representation", "Time spent building representations")
+          .record(representation, TimeUnit.NANOSECONDS);
+      timer("serialization", "Time spent serializing representations by the extension itself")
+          .record(serialization, TimeUnit.NANOSECONDS);
+      counter("not_found", "Requested ids without user").increment(notFoundCount);
+      counter("forbidden", "Requested users the admin may not view").increment(forbiddenCount);
+
+      requests.increment();
+      ids.add(idCount);
+      notFound.add(notFoundCount);
+      forbidden.add(forbiddenCount);
+      resolutionNanos.add(resolution);
+      permissionCheckNanos.add(permissionCheck);
+      representationNanos.add(representation);
+      serializationNanos.add(serialization);
+    }
+
+    private Timer timer(String name, String description) {
+      return Timer.builder(PREFIX + "." + name)
+          .description(description)
+          .tags("realm", realm, "mode", mode)
+          .publishPercentileHistogram()
+          .register(registry);
+    }
+
+    private Counter counter(String name, String description) {
+      return Counter.builder(PREFIX + "." + name)
+          .description(description)
+          .tags("realm", realm, "mode", mode)
+          .register(registry);
+    }
+  }
+}
@@ -0,0 +1,38 @@
+package de.conciso.keycloak.resource.admin;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Response of users-by-id in partial mode: the users that could be returned together with the ids that could not.
+ */
+public class UsersByIdResult {
+
+  // user representations, cached ones as raw JSON
+  private final List<Object> users;
+  private final List<UUID> notFound = new ArrayList<>();
+  private final List<UUID> forbidden = new ArrayList<>();
+
+  UsersByIdResult(List<Object> users) {
+    this.users = users;
+  }
+
+  public List<Object> getUsers() {
+    return users;
+  }
+
+  /**
+   * @return ids for which no user exists
+   */
+  public List<UUID> getNotFound() {
+    return notFound;
+  }
+
+  /**
+   * @return ids of users the requesting admin is not allowed to view
+   */
+  public List<UUID> getForbidden() {
+    return forbidden;
+  }
+}
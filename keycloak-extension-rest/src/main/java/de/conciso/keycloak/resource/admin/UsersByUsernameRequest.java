@@ -0,0 +1,29 @@
+package de.conciso.keycloak.resource.admin;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Body of the POST variant of users-by-username.
+ */
+public class UsersByUsernameRequest {
+
+  private List<String> usernames = new ArrayList<>();
+  private List<String> emails = new ArrayList<>();
+
+  public List<String> getUsernames() {
+    return usernames;
+  }
+
+  public void setUsernames(List<String> usernames) {
+    this.usernames = usernames != null ? usernames : new ArrayList<>();
+  }
+
+  public List<String> getEmails() {
+    return emails;
+  }
+
+  public void setEmails(List<String> emails) {
+    this.emails = emails != null ? emails : new ArrayList<>();
+  }
+}
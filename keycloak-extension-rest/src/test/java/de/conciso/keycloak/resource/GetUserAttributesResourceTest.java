@@ -0,0 +1,140 @@
+package de.conciso.keycloak.resource;
+
+import de.conciso.keycloak.resource.admin.GetUserAttributesResource;
+import jakarta.ws.rs.BadRequestException;
+import jakarta.ws.rs.core.Response;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Nested;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.keycloak.common.Profile;
+import org.keycloak.models.KeycloakContext;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.UserModel;
+import org.keycloak.models.UserProvider;
+import org.keycloak.services.resources.admin.fgap.AdminPermissionEvaluator;
+import org.keycloak.services.resources.admin.fgap.UserPermissionEvaluator;
+import org.mockito.InjectMocks;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.stream.Stream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.mockito.BDDMockito.given;
+
+@ExtendWith(MockitoExtension.class)
+class GetUserAttributesResourceTest {
+
+  static final UUID USER_ID = UUID.fromString("0b6c3d2e-7f41-4a8e-9c55-3e2d1f0a9b01");
+  static final UUID UNKNOWN_ID = UUID.fromString("0b6c3d2e-7f41-4a8e-9c55-3e2d1f0a9b02");
+
+  @InjectMocks
+  GetUserAttributesResource cut;
+
+  @Mock
+  KeycloakSession session;
+
+  @Mock
+  UserProvider userProvider;
+
+  @Mock
+  KeycloakContext keycloakContext;
+
+  @Mock
+  RealmModel realmModel;
+
+  @Mock
+  UserModel userModel;
+
+  @Mock
+  AdminPermissionEvaluator adminPermissionEvaluator;
+
+  @Mock
+  UserPermissionEvaluator userPermissionEvaluator;
+
+  @BeforeEach
+  void setUp() {
+    Profile.defaults();
+    given(adminPermissionEvaluator.users()).willReturn(userPermissionEvaluator);
+  }
+
+  @Nested
+  class GivenAUserWithALastLogin {
+
+    @BeforeEach
+    void setUp() {
+      given(session.users()).willReturn(userProvider);
+      given(session.getContext()).willReturn(keycloakContext);
+      given(keycloakContext.getRealm()).willReturn(realmModel);
+      given(userPermissionEvaluator.canView()).willReturn(true);
+      given(userProvider.getUserById(realmModel, USER_ID.toString())).willReturn(userModel);
+      given(userModel.getAttributeStream("lastSuccessfulLoginAt"))
+        .willAnswer(invocation -> Stream.of("2026-10-01T08:00:00Z"));
+      given(userModel.getAttributeStream("department")).willAnswer(invocation -> Stream.empty());
+    }
+
+    @Nested
+    class WhenGetAttributesByListOfIds {
+
+      Response response;
+
+      @BeforeEach
+      void setUp() {
+        response = cut.getAttributesByListOfIds(List.of(USER_ID), List.of("lastSuccessfulLoginAt,department"));
+      }
+
+      @Test
+      void thenReturnsTheAttributesTheUserHas() {
+        assertThat(response.getStatus()).isEqualTo(200);
+        assertThat((Map<String, Map<String, List<String>>>) response.getEntity())
+          .containsExactly(Map.entry(USER_ID.toString(),
+            Map.of("lastSuccessfulLoginAt", List.of("2026-10-01T08:00:00Z"))));
+      }
+    }
+  }
+
+  @Nested
+  class GivenAnUnknownId {
+
+    @BeforeEach
+    void setUp() {
+      given(session.users()).willReturn(userProvider);
+      given(session.getContext()).willReturn(keycloakContext);
+      given(keycloakContext.getRealm()).willReturn(realmModel);
+      given(userPermissionEvaluator.canView()).willReturn(true);
+      given(userProvider.getUserById(realmModel, UNKNOWN_ID.toString())).willReturn(null);
+    }
+
+    @Nested
+    class WhenGetAttributesByListOfIds {
+
+      Response response;
+
+      @BeforeEach
+      void setUp() {
+        response = cut.getAttributesByListOfIds(List.of(UNKNOWN_ID), List.of("lastSuccessfulLoginAt"));
+      }
+
+      @Test
+      void thenReturnsNotFound() {
+        assertThat(response.getStatus()).isEqualTo(404);
+      }
+    }
+  }
+
+  @Nested
+  class WhenNoAttributeIsRequested {
+
+    @Test
+    void thenTheRequestIsRejected() {
+      assertThatThrownBy(() -> cut.getAttributesByListOfIds(List.of(USER_ID), List.of()))
+        .isInstanceOf(BadRequestException.class);
+    }
+  }
+}
@@ -0,0 +1,214 @@
+package de.conciso.keycloak.resource;
+
+import de.conciso.keycloak.resource.admin.GetUserMembershipsResource;
+import de.conciso.keycloak.resource.admin.UserMemberships;
+import jakarta.ws.rs.core.Response;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Nested;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.keycloak.common.Profile;
+import org.keycloak.models.ClientModel;
+import org.keycloak.models.GroupModel;
+import org.keycloak.models.GroupProvider;
+import org.keycloak.models.KeycloakContext;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.RoleModel;
+import org.keycloak.models.RoleProvider;
+import org.keycloak.models.UserModel;
+import org.keycloak.models.UserProvider;
+import org.keycloak.services.resources.admin.fgap.AdminPermissionEvaluator;
+import org.keycloak.services.resources.admin.fgap.UserPermissionEvaluator;
+import org.mockito.InjectMocks;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.UUID;
+import java.util.stream.Stream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.BDDMockito.given;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+@ExtendWith(MockitoExtension.class)
+class GetUserMembershipsResourceTest {
+
+  static final UUID FIRST_ID = UUID.fromString("6f1c5a4e-2b1d-4c39-9d2a-0a8f6f3b1c01");
+  static final UUID SECOND_ID = UUID.fromString("6f1c5a4e-2b1d-4c39-9d2a-0a8f6f3b1c02");
+
+  @InjectMocks
+  GetUserMembershipsResource cut;
+
+  @Mock
+  KeycloakSession session;
+
+  @Mock
+  UserProvider userProvider;
+
+  @Mock
+  GroupProvider groupProvider;
+
+  @Mock
+  RoleProvider roleProvider;
+
+  @Mock
+  KeycloakContext keycloakContext;
+
+  @Mock
+  RealmModel realmModel;
+
+  @Mock
+  UserModel firstUser;
+
+  @Mock
+  UserModel secondUser;
+
+  @Mock
+  GroupModel parentGroup;
+
+  @Mock
+  GroupModel childGroup;
+
+  @Mock
+  RoleModel compositeRole;
+
+  @Mock
+  RoleModel realmRole;
+
+  @Mock
+  RoleModel clientRole;
+
+  @Mock
+  ClientModel client;
+
+  @Mock
+  AdminPermissionEvaluator adminPermissionEvaluator;
+
+  @Mock
+  UserPermissionEvaluator userPermissionEvaluator;
+
+  @BeforeEach
+  void setUp() {
+    Profile.defaults();
+    given(adminPermissionEvaluator.users()).willReturn(userPermissionEvaluator);
+  }
+
+  @Nested
+  class GivenTwoUsersInTheSameGroupWithACompositeRole {
+
+    @BeforeEach
+    void setUp() {
+      given(session.users()).willReturn(userProvider);
+      given(session.groups()).willReturn(groupProvider);
+      given(session.roles()).willReturn(roleProvider);
+      given(session.getContext()).willReturn(keycloakContext);
+      given(keycloakContext.getRealm()).willReturn(realmModel);
+      given(userPermissionEvaluator.canView()).willReturn(true);
+
+      given(firstUser.getId()).willReturn(FIRST_ID.toString());
+      given(secondUser.getId()).willReturn(SECOND_ID.toString());
+      given(userProvider.getUserById(realmModel, FIRST_ID.toString())).willReturn(firstUser);
+      given(userProvider.getUserById(realmModel, SECOND_ID.toString())).willReturn(secondUser);
+      given(firstUser.getGroupsStream()).willAnswer(invocation -> Stream.of(childGroup));
+      given(secondUser.getGroupsStream()).willAnswer(invocation -> Stream.of(childGroup));
+      given(firstUser.getRoleMappingsStream()).willAnswer(invocation -> Stream.of(compositeRole));
+      given(secondUser.getRoleMappingsStream()).willAnswer(invocation -> Stream.empty());
+
+      given(childGroup.getId()).willReturn("child-id");
+      given(childGroup.getName()).willReturn("child");
+      given(childGroup.getParentId()).willReturn("parent-id");
+      given(childGroup.getParent()).willReturn(parentGroup);
+      given(childGroup.getRoleMappingsStream()).willAnswer(invocation -> Stream.empty());
+      given(parentGroup.getName()).willReturn("parent");
+      given(parentGroup.getRoleMappingsStream()).willAnswer(invocation -> Stream.of(clientRole));
+      given(groupProvider.getGroupById(realmModel, "child-id")).willReturn(childGroup);
+      given(groupProvider.getGroupById(realmModel, "parent-id")).willReturn(parentGroup);
+
+      given(compositeRole.getId()).willReturn("composite-id");
+      given(compositeRole.getName()).willReturn("composite");
+      given(compositeRole.getCompositesStream()).willAnswer(invocation -> Stream.of(realmRole));
+      given(realmRole.getId()).willReturn("realm-role-id");
+      given(realmRole.getName()).willReturn("realm-role");
+      given(realmRole.getCompositesStream()).willAnswer(invocation -> Stream.empty());
+      given(clientRole.getId()).willReturn("client-role-id");
+      given(clientRole.getName()).willReturn("client-role");
+      given(clientRole.isClientRole()).willReturn(true);
+      given(clientRole.getContainer()).willReturn(client);
+      given(clientRole.getCompositesStream()).willAnswer(invocation -> Stream.empty());
+      given(client.getClientId()).willReturn("some-client");
+      given(roleProvider.getRoleById(realmModel, "composite-id")).willReturn(compositeRole);
+      given(roleProvider.getRoleById(realmModel, "client-role-id")).willReturn(clientRole);
+    }
+
+    @Nested
+    class WhenGetMembershipsByListOfIds {
+
+      Map<String, UserMemberships> memberships;
+
+      @BeforeEach
+      void setUp() {
+        Response response = cut.getMembershipsByListOfIds(List.of(FIRST_ID, SECOND_ID));
+        assertThat(response.getStatus()).isEqualTo(200);
+        memberships = (Map<String, UserMemberships>) response.getEntity();
+      }
+
+      @Test
+      void thenReturnsDirectAndEffectiveMembershipsInRequestOrder() {
+        assertThat(memberships).containsOnlyKeys(FIRST_ID.toString(), SECOND_ID.toString());
+        UserMemberships first = memberships.get(FIRST_ID.toString());
+        assertThat(first.getGroups()).containsExactly("/parent/child");
+        assertThat(first.getEffectiveGroups()).containsExactly("/parent", "/parent/child");
+        assertThat(first.getRealmRoles()).containsExactly("composite");
+        assertThat(first.getEffectiveRealmRoles()).containsExactly("composite", "realm-role");
+        assertThat(first.getClientRoles()).isEmpty();
+        assertThat(first.getEffectiveClientRoles()).containsEntry("some-client", new TreeSet<>(List.of(
+          "client-role")));
+
+        UserMemberships second = memberships.get(SECOND_ID.toString());
+        assertThat(second.getRealmRoles()).isEmpty();
+        assertThat(second.getEffectiveRealmRoles()).isEmpty();
+        assertThat(second.getEffectiveGroups()).containsExactly("/parent", "/parent/child");
+      }
+
+      @Test
+      void thenResolvesEachGroupOnlyOnce() {
+        verify(groupProvider, times(1)).getGroupById(realmModel, "child-id");
+        verify(groupProvider, times(1)).getGroupById(realmModel, "parent-id");
+        verify(parentGroup, times(1)).getRoleMappingsStream();
+      }
+    }
+  }
+
+  @Nested
+  class GivenAnUnknownId {
+
+    @BeforeEach
+    void setUp() {
+      given(session.users()).willReturn(userProvider);
+      given(session.getContext()).willReturn(keycloakContext);
+      given(keycloakContext.getRealm()).willReturn(realmModel);
+      given(userProvider.getUserById(realmModel, FIRST_ID.toString())).willReturn(null);
+    }
+
+    @Nested
+    class WhenGetMembershipsByListOfIds {
+
+      Response response;
+
+      @BeforeEach
+      void setUp() {
+        response = cut.getMembershipsByListOfIds(List.of(FIRST_ID));
+      }
+
+      @Test
+      void thenReturnsNotFound() {
+        assertThat(response.getStatus()).isEqualTo(404);
+      }
+    }
+  }
+}
@@ -1,18 +1,31 @@
 package de.conciso.keycloak.resource;
 
+import com.fasterxml.jackson.dataformat.cbor.databind.CBORMapper;
 import de.conciso.keycloak.resource.admin.GetUsersByIdResource;
+import de.conciso.keycloak.resource.admin.UsersByIdResult;
+import jakarta.persistence.EntityManager;
+import jakarta.persistence.TypedQuery;
+import jakarta.ws.rs.BadRequestException;
 import jakarta.ws.rs.ForbiddenException;
+import jakarta.ws.rs.core.HttpHeaders;
+import jakarta.ws.rs.core.MediaType;
 import jakarta.ws.rs.core.Response;
+import jakarta.ws.rs.core.StreamingOutput;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Nested;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.extension.ExtendWith;
 import org.keycloak.common.Profile;
+import org.keycloak.connections.jpa.JpaConnectionProvider;
+import org.keycloak.http.HttpRequest;
 import org.keycloak.models.*;
+import org.keycloak.models.jpa.UserAdapter;
+import org.keycloak.models.jpa.entities.UserEntity;
 import org.keycloak.models.light.LightweightUserAdapter;
 import org.keycloak.representations.idm.UserRepresentation;
 import org.keycloak.services.resources.admin.fgap.AdminPermissionEvaluator;
 import org.keycloak.services.resources.admin.fgap.UserPermissionEvaluator;
+import org.keycloak.util.JsonSerialization;
 import org.mockito.InjectMocks;
 import org.mockito.Mock;
 import org.mockito.Spy;
@@ -20,14 +33,24 @@ import org.mockito.junit.jupiter.MockitoExtension;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.util.List;
 import java.util.UUID;
 
 import static org.assertj.core.api.Assertions.assertThat;
 import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
 import static org.mockito.BDDMockito.given;
 import static org.mockito.Mockito.doNothing;
+import static org.mockito.Mockito.doReturn;
 import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 
 @ExtendWith(MockitoExtension.class)
 class GetUsersByIdResourceProviderTest {
@@ -62,6 +85,12 @@ class GetUsersByIdResourceProviderTest {
   @Mock
   LightweightUserAdapter lightweightUserAdapter;
 
+  @Mock
+  HttpRequest httpRequest;
+
+  @Mock
+  HttpHeaders httpHeaders;
+
   @BeforeEach
   void setUp() {
     // set this for LightWeightUserAdapter to function
@@ -100,7 +129,7 @@ class GetUsersByIdResourceProviderTest {
 
       @BeforeEach
       void setUp() {
-        response = cut.getAllUsersByListOfIds(emptyList, true);
+        response = cut.getAllUsersByListOfIds(emptyList, true, List.of(), List.of(), false, false, null, null);
       }
 
       @Test
@@ -130,7 +159,7 @@ class GetUsersByIdResourceProviderTest {
 
       @BeforeEach
       void setUp() {
-        response = cut.getAllUsersByListOfIds(listWithOneID, true);
+        response = cut.getAllUsersByListOfIds(listWithOneID, true, List.of(), List.of(), false, false, null, null);
       }
 
       @Test
@@ -143,9 +172,174 @@ class GetUsersByIdResourceProviderTest {
           .containsExactly("test@gmail.com");
       }
     }
+
+    @Nested
+    class WhenGetAllUsersByIdAgainWithTheReturnedEntityTag {
+
+      Response response;
+
+      @BeforeEach
+      void setUp() {
+        var firstResponse = cut.getAllUsersByListOfIds(listWithOneID, true, List.of(), List.of(), false, false, null, null);
+        given(keycloakContext.getHttpRequest()).willReturn(httpRequest);
+        given(httpRequest.getHttpHeaders()).willReturn(httpHeaders);
+        given(httpHeaders.getHeaderString(HttpHeaders.IF_NONE_MATCH))
+          .willReturn("\"" + firstResponse.getEntityTag().getValue() + "\"");
+        response = cut.getAllUsersByListOfIds(listWithOneID, true, List.of(), List.of(), false, false, null, null);
+      }
+
+      @Test
+      void thenReturnsNotModified() {
+        assertThat(response.getStatus()).isEqualTo(304);
+        assertThat(response.getEntity()).isNull();
+      }
+    }
+
+    @Nested
+    class WhenGetAllUsersByIdAgainAfterTheUserWasRemoved {
+
+      Response firstResponse;
+      Response response;
+
+      @BeforeEach
+      void setUp() {
+        doReturn(true).when(userPermissionEvaluator).canView();
+        firstResponse = cut.getAllUsersByListOfIds(listWithOneID, true, List.of(), List.of(), false, true, null, null);
+        given(userProvider.getUserById(realmModel, SOME_ID.toString())).willReturn(null);
+        given(keycloakContext.getHttpRequest()).willReturn(httpRequest);
+        given(httpRequest.getHttpHeaders()).willReturn(httpHeaders);
+        given(httpHeaders.getHeaderString(HttpHeaders.IF_NONE_MATCH))
+          .willReturn("\"" + firstResponse.getEntityTag().getValue() + "\"");
+        response = cut.getAllUsersByListOfIds(listWithOneID, true, List.of(), List.of(), false, true, null, null);
+      }
+
+      @Test
+      void thenReportsTheUserAsNotFoundWithANewEntityTag() {
+        assertThat(response.getStatus()).isEqualTo(200);
+        assertThat(response.getEntityTag()).isNotEqualTo(firstResponse.getEntityTag());
+        assertThat(((UsersByIdResult) response.getEntity()).getNotFound()).containsExactly(SOME_ID);
+      }
+    }
+
+    @Nested
+    class WhenGetAllUsersByIdAsNdjson {
+
+      Response response;
+
+      @BeforeEach
+      void setUp() {
+        given(keycloakContext.getHttpRequest()).willReturn(httpRequest);
+        given(httpRequest.getHttpHeaders()).willReturn(httpHeaders);
+        given(httpHeaders.getAcceptableMediaTypes())
+          .willReturn(List.of(MediaType.valueOf(GetUsersByIdResource.APPLICATION_NDJSON)));
+        response = cut.getAllUsersByListOfIds(listWithOneID, true, List.of(), List.of(), false, false, null, null);
+      }
+
+      @Test
+      void thenWritesOneUserPerLine() throws IOException {
+        assertThat(response.getStatus()).isEqualTo(200);
+        assertThat(response.getMediaType().toString()).isEqualTo(GetUsersByIdResource.APPLICATION_NDJSON);
+        var out = new ByteArrayOutputStream();
+        ((StreamingOutput) response.getEntity()).write(out);
+        var lines = out.toString(StandardCharsets.UTF_8).split("\n");
+
+        assertThat(lines).hasSize(1);
+        assertThat(JsonSerialization.readValue(lines[0], UserRepresentation.class).getEmail())
+          .isEqualTo("test@gmail.com");
+      }
+    }
+
+    @Nested
+    class WhenGetAllUsersByIdAsCbor {
+
+      Response response;
+
+      @BeforeEach
+      void setUp() {
+        given(keycloakContext.getHttpRequest()).willReturn(httpRequest);
+        given(httpRequest.getHttpHeaders()).willReturn(httpHeaders);
+        given(httpHeaders.getAcceptableMediaTypes())
+          .willReturn(List.of(MediaType.valueOf(GetUsersByIdResource.APPLICATION_CBOR)));
+        response = cut.getAllUsersByListOfIds(listWithOneID, true, List.of(), List.of(), false, false, null, null);
+      }
+
+      @Test
+      void thenWritesCbor() throws IOException {
+        assertThat(response.getStatus()).isEqualTo(200);
+        var out = new ByteArrayOutputStream();
+        ((StreamingOutput) response.getEntity()).write(out);
+        var userRepresentations = new CBORMapper().readValue(out.toByteArray(), UserRepresentation[].class);
+
+        assertThat(userRepresentations)
+          .extracting(UserRepresentation::getEmail)
+          .containsExactly("test@gmail.com");
+      }
+    }
+
+    @Nested
+    class WhenGetAllUsersByIdStreamed {
+
+      Response response;
+
+      @BeforeEach
+      void setUp() {
+        response = cut.getAllUsersByListOfIds(listWithOneID, true, List.of(), List.of(), true, false, null, null);
+      }
+
+      @Test
+      void thenStreamsCorrectUser() throws IOException {
+        assertThat(response.getStatus()).isEqualTo(200);
+        var out = new ByteArrayOutputStream();
+        ((StreamingOutput) response.getEntity()).write(out);
+        var userRepresentations = JsonSerialization.readValue(out.toByteArray(), UserRepresentation[].class);
+
+        assertThat(userRepresentations)
+          .extracting(UserRepresentation::getEmail)
+          .containsExactly("test@gmail.com");
+      }
+    }
+
+    @Nested
+    class WhenGetAllUsersByBodyStreamed {
+
+      ByteArrayInputStream body = new ByteArrayInputStream(
+          ("[\"" + SOME_ID + "\"]").getBytes(StandardCharsets.UTF_8));
+      Response response;
+
+      @BeforeEach
+      void setUp() {
+        response = cut.getAllUsersByJsonArrayOfIds(body, true, List.of(), List.of(), true, false, 10, null);
+      }
+
+      @Test
+      void thenReadsThePageBeforeTheResponseIsWritten() throws IOException {
+        assertThat(body.available()).isZero();
+
+        var out = new ByteArrayOutputStream();
+        ((StreamingOutput) response.getEntity()).write(out);
+        var userRepresentations = JsonSerialization.readValue(out.toByteArray(), UserRepresentation[].class);
+
+        assertThat(userRepresentations)
+          .extracting(UserRepresentation::getEmail)
+          .containsExactly("test@gmail.com");
+      }
+    }
   }
 
 
+  @Nested
+  class GivenAStreamedBodyWithoutMax {
+
+    @Test
+    void thenTheRequestIsRejected() {
+      var body = new ByteArrayInputStream(("[\"" + SOME_ID + "\"]").getBytes(StandardCharsets.UTF_8));
+
+      assertThatThrownBy(
+          () -> cut.getAllUsersByJsonArrayOfIds(body, true, List.of(), List.of(), true, false, null, null))
+          .isInstanceOf(BadRequestException.class);
+    }
+  }
+
   @Nested
   class GivenTwoIdsInListButOneDoesntExist {
     private final static UUID NOT_KNOWN_ID = new UUID(0, 1);
@@ -164,6 +358,7 @@ class GetUsersByIdResourceProviderTest {
       @BeforeEach
       void setUp() {
         given(userProvider.getUserById(realmModel, NOT_KNOWN_ID.toString())).willReturn(null);
+        given(userProvider.getUserById(realmModel, SOME_ID.toString())).willReturn(userModel);
       }
 
       @Nested
@@ -173,7 +368,7 @@ class GetUsersByIdResourceProviderTest {
 
         @BeforeEach
         void setUp() {
-          response = cut.getAllUsersByListOfIds(listWithTwoIds, true);
+          response = cut.getAllUsersByListOfIds(listWithTwoIds, true, List.of(), List.of(), false, false, null, null);
         }
 
         @Test
@@ -205,7 +400,7 @@ class GetUsersByIdResourceProviderTest {
 
         @BeforeEach
         void setUp() {
-          response = cut.getAllUsersByListOfIds(listWithTwoIds, true);
+          response = cut.getAllUsersByListOfIds(listWithTwoIds, true, List.of(), List.of(), false, false, null, null);
         }
 
         @Test
@@ -217,6 +412,106 @@ class GetUsersByIdResourceProviderTest {
 
         }
       }
+
+      @Nested
+      class WhenGetAllUsersByIdInPartialModeWithoutPermission {
+
+        Response response;
+
+        @BeforeEach
+        void setUp() {
+          given(userModel.getId()).willReturn(SOME_ID.toString());
+          doReturn(false).when(userPermissionEvaluator).canView();
+          doReturn(false).when(userPermissionEvaluator).canView(userModel);
+          response = cut.getAllUsersByListOfIds(listWithTwoIds, true, List.of(), List.of(), false, true, null, null);
+        }
+
+        @Test
+        void thenReportsUnknownAndForbiddenIds() {
+          assertThat(response.getStatus()).isEqualTo(200);
+          var result = (UsersByIdResult) response.getEntity();
+
+          assertThat(result.getUsers()).isEmpty();
+          assertThat(result.getNotFound()).containsExactly(NOT_KNOWN_ID);
+          assertThat(result.getForbidden()).containsExactly(SOME_ID);
+        }
+      }
+    }
+  }
+
+  @Nested
+  class GivenTheJpaUserStoreIsAvailable {
+
+    private final static UUID OTHER_ID = new UUID(0, 2);
+
+    List<UUID> listWithTwoIds = List.of(SOME_ID, OTHER_ID);
+
+    @Mock
+    JpaConnectionProvider jpaConnectionProvider;
+
+    @Mock
+    EntityManager entityManager;
+
+    @Mock
+    TypedQuery<UserEntity> query;
+
+    @BeforeEach
+    void setUp() {
+      setKeycloakContextMocks();
+      given(realmModel.getId()).willReturn("realm");
+      given(session.getProvider(JpaConnectionProvider.class)).willReturn(jpaConnectionProvider);
+      given(jpaConnectionProvider.getEntityManager()).willReturn(entityManager);
+      given(entityManager.createQuery(anyString(), eq(UserEntity.class))).willReturn(query);
+      given(query.setParameter(anyString(), any())).willReturn(query);
+      UserEntity some = userEntity(SOME_ID, "some@gmail.com");
+      UserEntity other = userEntity(OTHER_ID, "other@gmail.com");
+      given(query.getResultList()).willReturn(List.of(some, other));
+      // served from the persistence context filled by the query, like the JPA user provider does
+      given(userProvider.getUserById(realmModel, SOME_ID.toString()))
+        .willReturn(new UserAdapter(session, realmModel, entityManager, some));
+      given(userProvider.getUserById(realmModel, OTHER_ID.toString()))
+        .willReturn(new UserAdapter(session, realmModel, entityManager, other));
+    }
+
+    UserEntity userEntity(UUID id, String email) {
+      UserEntity entity = new UserEntity();
+      entity.setId(id.toString());
+      entity.setUsername(email);
+      entity.setEmail(email, false);
+      entity.setAttributes(List.of());
+      return entity;
+    }
+
+    @Nested
+    class WhenGetAllUsersById {
+
+      Response response;
+
+      @BeforeEach
+      void setUp() {
+        response = cut.getAllUsersByListOfIds(listWithTwoIds, true, List.of(), List.of(), false, false, null, null);
+      }
+
+      @Test
+      void thenReturnsUsersInRequestedOrder() {
+        assertThat(response.getStatus()).isEqualTo(200);
+        var userRepresentations = (List<UserRepresentation>) response.getEntity();
+
+        assertThat(userRepresentations)
+          .extracting(UserRepresentation::getEmail)
+          .containsExactly("some@gmail.com", "other@gmail.com");
+      }
+
+      @Test
+      void thenLoadsAllUsersWithOneQuery() {
+        verify(query, times(1)).getResultList();
+      }
+
+      @Test
+      void thenResolvesTheUsersThroughTheUserProvider() {
+        verify(userProvider).getUserById(realmModel, SOME_ID.toString());
+        verify(userProvider).getUserById(realmModel, OTHER_ID.toString());
+      }
     }
   }
 
@@ -237,7 +532,7 @@ class GetUsersByIdResourceProviderTest {
       @Test
       void thenReturnsForbidden() {
         assertThatThrownBy(() ->
-          cut.getAllUsersByListOfIds(listWithOneID, true))
+          cut.getAllUsersByListOfIds(listWithOneID, true, List.of(), List.of(), false, false, null, null))
           .isInstanceOf(ForbiddenException.class);
       }
     }
@@ -0,0 +1,130 @@
+package de.conciso.keycloak.resource;
+
+import de.conciso.keycloak.resource.admin.GetUsersByUsernameResource;
+import jakarta.ws.rs.core.Response;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Nested;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.keycloak.common.Profile;
+import org.keycloak.models.KeycloakContext;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.UserModel;
+import org.keycloak.models.UserProvider;
+import org.keycloak.representations.idm.UserRepresentation;
+import org.keycloak.services.resources.admin.fgap.AdminPermissionEvaluator;
+import org.keycloak.services.resources.admin.fgap.UserPermissionEvaluator;
+import org.mockito.InjectMocks;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.BDDMockito.given;
+
+@ExtendWith(MockitoExtension.class)
+class GetUsersByUsernameResourceTest {
+
+  @InjectMocks
+  GetUsersByUsernameResource cut;
+
+  @Mock
+  KeycloakSession session;
+
+  @Mock
+  UserProvider userProvider;
+
+  @Mock
+  KeycloakContext keycloakContext;
+
+  @Mock
+  RealmModel realmModel;
+
+  @Mock
+  UserModel userModel;
+
+  @Mock
+  AdminPermissionEvaluator adminPermissionEvaluator;
+
+  @Mock
+  UserPermissionEvaluator userPermissionEvaluator;
+
+  @BeforeEach
+  void setUp() {
+    Profile.defaults();
+    given(adminPermissionEvaluator.users()).willReturn(userPermissionEvaluator);
+  }
+
+  @Nested
+  class GivenAUserRequestedByUsernameAndEmail {
+
+    @BeforeEach
+    void setUp() {
+      given(session.users()).willReturn(userProvider);
+      given(session.getContext()).willReturn(keycloakContext);
+      given(keycloakContext.getRealm()).willReturn(realmModel);
+      given(userModel.getId()).willReturn("some-id");
+      given(userModel.getUsername()).willReturn("test");
+      given(userProvider.getUserByUsername(realmModel, "test")).willReturn(userModel);
+      given(userProvider.getUserByUsername(realmModel, "unknown")).willReturn(null);
+      given(userProvider.getUserByEmail(realmModel, "test@gmail.com")).willReturn(userModel);
+      given(userPermissionEvaluator.canView()).willReturn(true);
+    }
+
+    @Nested
+    class WhenGetUsersByUsernamesOrEmails {
+
+      Response response;
+
+      @BeforeEach
+      void setUp() {
+        response = cut.getUsersByUsernamesOrEmails(List.of("test", "unknown"), List.of("test@gmail.com"), true,
+          List.of(), List.of());
+      }
+
+      @Test
+      void thenReturnsTheUserOnceAndLeavesOutUnknownNames() {
+        assertThat(response.getStatus()).isEqualTo(200);
+        var userRepresentations = (List<UserRepresentation>) response.getEntity();
+
+        assertThat(userRepresentations)
+          .extracting(UserRepresentation::getUsername)
+          .containsExactly("test");
+      }
+    }
+  }
+
+  @Nested
+  class GivenAUserTheRequestingUserHasNoPermissionFor {
+
+    @BeforeEach
+    void setUp() {
+      given(session.users()).willReturn(userProvider);
+      given(session.getContext()).willReturn(keycloakContext);
+      given(keycloakContext.getRealm()).willReturn(realmModel);
+      given(userModel.getId()).willReturn("some-id");
+      given(userProvider.getUserByUsername(realmModel, "test")).willReturn(userModel);
+      given(userPermissionEvaluator.canView()).willReturn(false);
+      given(userPermissionEvaluator.canView(userModel)).willReturn(false);
+    }
+
+    @Nested
+    class WhenGetUsersByUsernamesOrEmails {
+
+      Response response;
+
+      @BeforeEach
+      void setUp() {
+        response = cut.getUsersByUsernamesOrEmails(List.of("test"), List.of(), true, List.of(), List.of());
+      }
+
+      @Test
+      void thenTheUserIsLeftOut() {
+        assertThat(response.getStatus()).isEqualTo(200);
+        assertThat((List<?>) response.getEntity()).isEmpty();
+      }
+    }
+  }
+}
@@ -23,6 +23,7 @@ import org.testcontainers.junit.jupiter.Container;
 import org.testcontainers.junit.jupiter.Testcontainers;
 
 import static org.assertj.core.api.Assertions.assertThat;
+import static org.hamcrest.Matchers.contains;
 import static org.hamcrest.Matchers.equalTo;
 import static org.hamcrest.Matchers.hasKey;
 import static org.hamcrest.Matchers.hasValue;
@@ -95,6 +96,37 @@ class RestIT {
         .body("[0].attributes.someKey[0]", equalTo("someValue"));
   }
 
+  @Test
+  void testThatIdsCanBePostedAsJsonArrayOrLines() {
+    RestAssured.given()
+        .baseUri(urlEndpoint)
+        .accept(MediaType.APPLICATION_JSON)
+        .contentType(MediaType.APPLICATION_JSON)
+        .queryParam("briefRepresentation", true)
+        .body(List.of("42ed876b-d758-4e69-9f39-9874e47a4d59", "f558ca89-e4c7-4964-84d0-197879944ad7"))
+        .header("Authorization", "Bearer " + getAccessToken())
+        .log().all()
+        .post()
+        .then()
+        .log().all()
+        .statusCode(200)
+        .body("username", contains("dieterbohlen", "mannimammut"));
+
+    RestAssured.given()
+        .baseUri(urlEndpoint)
+        .accept(MediaType.APPLICATION_JSON)
+        .contentType(MediaType.TEXT_PLAIN)
+        .queryParam("briefRepresentation", true)
+        .body("42ed876b-d758-4e69-9f39-9874e47a4d59\nf558ca89-e4c7-4964-84d0-197879944ad7\n")
+        .header("Authorization", "Bearer " + getAccessToken())
+        .log().all()
+        .post()
+        .then()
+        .log().all()
+        .statusCode(200)
+        .body("username", contains("dieterbohlen", "mannimammut"));
+  }
+
   private static Stream<Arguments> expectedUserCompositions() {
     return Stream.of(
         Arguments.of(200, Map.of("briefRepresentation", true), List.of()),
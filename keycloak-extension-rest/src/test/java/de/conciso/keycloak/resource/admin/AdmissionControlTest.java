@@ -0,0 +1,53 @@
+package de.conciso.keycloak.resource.admin;
+
+import jakarta.ws.rs.ClientErrorException;
+import java.util.Iterator;
+import java.util.List;
+import java.util.UUID;
+import org.junit.jupiter.api.Nested;
+import org.junit.jupiter.api.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class AdmissionControlTest {
+
+  @Nested
+  class GivenOneConcurrentRequestPerRealm {
+
+    AdmissionControl cut = new AdmissionControl(0, 1);
+
+    @Test
+    void thenASecondRequestOfTheSameRealmIsRejectedUntilTheFirstIsDone() {
+      AdmissionControl.Permit permit = cut.tryAcquire("realm");
+
+      assertThat(permit).isNotNull();
+      assertThat(cut.tryAcquire("realm")).isNull();
+      assertThat(cut.tryAcquire("other-realm")).isNotNull();
+
+      permit.release();
+      permit.release();
+
+      assertThat(cut.tryAcquire("realm")).isNotNull();
+      assertThat(cut.tryAcquire("realm")).isNull();
+      assertThat(cut.getRetryAfterSeconds()).isEqualTo(1);
+    }
+  }
+
+  @Nested
+  class GivenAnIdLimit {
+
+    AdmissionControl cut = new AdmissionControl(1, 0);
+
+    @Test
+    void thenReadingMoreIdsFailsWithPayloadTooLarge() {
+      Iterator<UUID> ids = cut.limit(List.of(new UUID(0, 0), new UUID(0, 1)).iterator());
+      ids.next();
+
+      assertThatThrownBy(ids::next)
+          .isInstanceOfSatisfying(ClientErrorException.class,
+              e -> assertThat(e.getResponse().getStatus()).isEqualTo(413));
+      assertThatThrownBy(() -> cut.checkIdCount(2)).isInstanceOf(ClientErrorException.class);
+    }
+  }
+}
@@ -0,0 +1,60 @@
+package de.conciso.keycloak.resource.admin;
+
+import jakarta.ws.rs.NotFoundException;
+import jakarta.ws.rs.core.Response;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CountDownLatch;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Nested;
+import org.junit.jupiter.api.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class AsyncExecutionTest {
+
+  @Nested
+  class GivenOneThreadWithoutQueue {
+
+    AsyncExecution cut = new AsyncExecution(1, 0);
+
+    @AfterEach
+    void tearDown() {
+      cut.close();
+    }
+
+    @Test
+    void thenASecondRequestIsRejectedWhileTheFirstRuns() throws InterruptedException {
+      CountDownLatch running = new CountDownLatch(1);
+      CountDownLatch done = new CountDownLatch(1);
+      CompletableFuture<Response> first = cut.submit(() -> {
+        running.countDown();
+        try {
+          done.await();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+        return Response.ok().build();
+      }).toCompletableFuture();
+      running.await();
+
+      Response second = cut.submit(() -> Response.ok().build()).toCompletableFuture().join();
+
+      assertThat(second.getStatus()).isEqualTo(429);
+      done.countDown();
+      assertThat(first.join().getStatus()).isEqualTo(200);
+    }
+
+    @Test
+    void thenExceptionsOfTheRequestAreKept() {
+      CompletableFuture<Response> response = cut.submit(() -> {
+        throw new NotFoundException();
+      }).toCompletableFuture();
+
+      assertThatThrownBy(response::join)
+          .isInstanceOf(CompletionException.class)
+          .hasCauseInstanceOf(NotFoundException.class);
+    }
+  }
+}
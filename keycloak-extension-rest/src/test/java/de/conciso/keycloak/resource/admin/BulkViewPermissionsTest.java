@@ -0,0 +1,99 @@
+package de.conciso.keycloak.resource.admin;
+
+import java.util.List;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Nested;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.keycloak.common.Profile;
+import org.keycloak.common.Profile.Feature;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.UserModel;
+import org.keycloak.services.resources.admin.fgap.AdminPermissionEvaluator;
+import org.keycloak.services.resources.admin.fgap.UserPermissionEvaluator;
+import org.mockito.InjectMocks;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assumptions.assumeThat;
+import static org.mockito.BDDMockito.given;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+@ExtendWith(MockitoExtension.class)
+class BulkViewPermissionsTest {
+
+  @InjectMocks
+  BulkViewPermissions cut;
+
+  @Mock
+  KeycloakSession session;
+
+  @Mock
+  AdminPermissionEvaluator auth;
+
+  @Mock
+  UserPermissionEvaluator userPermissions;
+
+  @Mock
+  BulkUserLookup userLookup;
+
+  @Mock
+  RealmModel realm;
+
+  @Mock
+  UserModel user;
+
+  @Mock
+  UserModel otherUser;
+
+  @BeforeEach
+  void setUp() {
+    Profile.defaults();
+    given(auth.users()).willReturn(userPermissions);
+  }
+
+  @Nested
+  class GivenRealmWideViewPermission {
+
+    @BeforeEach
+    void setUp() {
+      given(userPermissions.canView()).willReturn(true);
+    }
+
+    @Test
+    void thenNoUserIsDeniedAndNoUserIsChecked() {
+      assertThat(cut.getDenied(realm, List.of(user, otherUser))).isEmpty();
+      assertThat(cut.getDenied(realm, List.of(user))).isEmpty();
+
+      verify(userPermissions, times(1)).canView();
+      verify(userPermissions, never()).canView(user);
+    }
+  }
+
+  @Nested
+  class GivenPerUserPermissions {
+
+    @BeforeEach
+    void setUp() {
+      assumeThat(Profile.isFeatureEnabled(Feature.ADMIN_FINE_GRAINED_AUTHZ_V2)).isTrue();
+      given(userPermissions.canView()).willReturn(false);
+      given(user.getId()).willReturn("user");
+      given(otherUser.getId()).willReturn("other-user");
+      given(userPermissions.canView(user)).willReturn(true);
+      given(userPermissions.canView(otherUser)).willReturn(false);
+    }
+
+    @Test
+    void thenEachUserIsCheckedOnce() {
+      assertThat(cut.getDenied(realm, List.of(user, otherUser))).containsExactly("other-user");
+      assertThat(cut.getDenied(realm, List.of(user, otherUser))).containsExactly("other-user");
+
+      verify(userPermissions, times(1)).canView(user);
+      verify(userPermissions, times(1)).canView(otherUser);
+    }
+  }
+}
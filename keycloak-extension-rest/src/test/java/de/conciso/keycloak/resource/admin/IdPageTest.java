@@ -0,0 +1,48 @@
+package de.conciso.keycloak.resource.admin;
+
+import jakarta.ws.rs.BadRequestException;
+import java.util.List;
+import java.util.UUID;
+import org.junit.jupiter.api.Nested;
+import org.junit.jupiter.api.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class IdPageTest {
+
+  private final static List<UUID> IDS = List.of(new UUID(0, 0), new UUID(0, 1), new UUID(0, 2));
+
+  @Nested
+  class GivenPagesOfTwo {
+
+    @Test
+    void thenAllIdsArePagedThroughOnce() {
+      IdPage first = IdPage.of(IDS.iterator(), 2, null);
+      IdPage second = IdPage.of(IDS.iterator(), 2, first.getNextToken());
+
+      assertThat(first.getIds()).containsExactly(IDS.get(0), IDS.get(1));
+      assertThat(first.getNextToken()).isNotNull();
+      assertThat(second.getIds()).containsExactly(IDS.get(2));
+      assertThat(second.getNextToken()).isNull();
+    }
+
+    @Test
+    void thenATokenOfAnotherListIsRejected() {
+      String token = IdPage.of(IDS.iterator(), 2, null).getNextToken();
+
+      assertThatThrownBy(() -> IdPage.of(List.of(IDS.get(1), IDS.get(0), IDS.get(2)).iterator(), 2, token))
+        .isInstanceOf(BadRequestException.class);
+    }
+  }
+
+  @Nested
+  class GivenAnInvalidToken {
+
+    @Test
+    void thenIsRejected() {
+      assertThatThrownBy(() -> IdPage.of(IDS.iterator(), 2, "not-a-token"))
+        .isInstanceOf(BadRequestException.class);
+    }
+  }
+}
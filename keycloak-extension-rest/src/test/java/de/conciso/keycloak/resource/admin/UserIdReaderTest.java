@@ -0,0 +1,67 @@
+package de.conciso.keycloak.resource.admin;
+
+import jakarta.ws.rs.BadRequestException;
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import org.junit.jupiter.api.Nested;
+import org.junit.jupiter.api.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class UserIdReaderTest {
+
+  private final static UUID SOME_ID = new UUID(0, 0);
+  private final static UUID OTHER_ID = new UUID(0, 1);
+
+  private static InputStream body(String content) {
+    return new ByteArrayInputStream(content.getBytes(StandardCharsets.UTF_8));
+  }
+
+  private static List<UUID> readAll(UserIdReader reader) {
+    List<UUID> ids = new ArrayList<>();
+    reader.forEachRemaining(ids::add);
+    return ids;
+  }
+
+  @Nested
+  class GivenJsonArray {
+
+    @Test
+    void thenReadsAllIds() {
+      assertThat(readAll(UserIdReader.fromJsonArray(body("[\"" + SOME_ID + "\", \"" + OTHER_ID + "\"]"))))
+        .containsExactly(SOME_ID, OTHER_ID);
+    }
+
+    @Test
+    void thenReadsEmptyArray() {
+      assertThat(readAll(UserIdReader.fromJsonArray(body("[]")))).isEmpty();
+    }
+
+    @Test
+    void thenRejectsObject() {
+      assertThatThrownBy(() -> UserIdReader.fromJsonArray(body("{}")))
+        .isInstanceOf(BadRequestException.class);
+    }
+
+    @Test
+    void thenRejectsInvalidId() {
+      assertThatThrownBy(() -> readAll(UserIdReader.fromJsonArray(body("[\"not-an-id\"]"))))
+        .isInstanceOf(BadRequestException.class);
+    }
+  }
+
+  @Nested
+  class GivenLines {
+
+    @Test
+    void thenReadsAllIdsAndSkipsBlankLines() {
+      assertThat(readAll(UserIdReader.fromLines(body(SOME_ID + "\r\n\n  " + OTHER_ID + "  \n"))))
+        .containsExactly(SOME_ID, OTHER_ID);
+    }
+  }
+}
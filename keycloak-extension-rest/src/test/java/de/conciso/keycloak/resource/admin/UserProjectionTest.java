@@ -0,0 +1,81 @@
+package de.conciso.keycloak.resource.admin;
+
+import de.conciso.keycloak.resource.admin.BulkUserLookup.Fetch;
+import jakarta.ws.rs.BadRequestException;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Stream;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Nested;
+import org.junit.jupiter.api.Test;
+import org.keycloak.models.UserModel;
+import org.keycloak.representations.idm.UserRepresentation;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.mockito.BDDMockito.given;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+
+class UserProjectionTest {
+
+  UserModel userModel = mock(UserModel.class);
+
+  @BeforeEach
+  void setUp() {
+    given(userModel.getId()).willReturn("some-id");
+    given(userModel.getUsername()).willReturn("test");
+    given(userModel.getEmail()).willReturn("test@gmail.com");
+  }
+
+  @Nested
+  class GivenFieldsAndAttributes {
+
+    UserProjection projection = UserProjection.of(List.of("username,email"), List.of("lastSuccessfulLoginAt"));
+
+    @BeforeEach
+    void setUp() {
+      given(userModel.getAttributeStream("lastSuccessfulLoginAt")).willReturn(Stream.of("2024-01-01T00:00:00Z"));
+    }
+
+    @Test
+    void thenOnlyRequestedPartsAreBuilt() {
+      UserRepresentation rep = projection.toRepresentation(userModel);
+
+      assertThat(rep.getId()).isEqualTo("some-id");
+      assertThat(rep.getUsername()).isEqualTo("test");
+      assertThat(rep.getEmail()).isEqualTo("test@gmail.com");
+      assertThat(rep.getFirstName()).isNull();
+      assertThat(rep.getAttributes()).isEqualTo(Map.of("lastSuccessfulLoginAt", List.of("2024-01-01T00:00:00Z")));
+      verify(userModel, never()).getAttributes();
+      verify(userModel, never()).getRequiredActionsStream();
+    }
+
+    @Test
+    void thenOnlyAttributesAreFetched() {
+      assertThat(projection.getFetch()).containsExactly(Fetch.ATTRIBUTES);
+    }
+  }
+
+  @Nested
+  class GivenOnlyFields {
+
+    UserProjection projection = UserProjection.of(List.of("username", "email"), List.of());
+
+    @Test
+    void thenNothingIsFetched() {
+      assertThat(projection.getFetch()).isEmpty();
+    }
+  }
+
+  @Nested
+  class GivenUnknownField {
+
+    @Test
+    void thenIsRejected() {
+      assertThatThrownBy(() -> UserProjection.of(List.of("password"), List.of()))
+        .isInstanceOf(BadRequestException.class);
+    }
+  }
+}
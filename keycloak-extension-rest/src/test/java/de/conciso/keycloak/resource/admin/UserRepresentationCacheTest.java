@@ -0,0 +1,75 @@
+package de.conciso.keycloak.resource.admin;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Nested;
+import org.junit.jupiter.api.Test;
+import org.keycloak.common.util.Time;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class UserRepresentationCacheTest {
+
+  UserRepresentationCache cut = new UserRepresentationCache(2, 60_000);
+
+  @AfterEach
+  void tearDown() {
+    Time.setOffset(0);
+  }
+
+  @Nested
+  class GivenCachedRepresentation {
+
+    @BeforeEach
+    void setUp() {
+      cut.put("realm", "user", "brief", "{\"id\":\"user\"}", cut.generation());
+    }
+
+    @Test
+    void thenItIsReturnedForTheSameRealmAndKindOnly() {
+      assertThat(cut.get("realm", "user", "brief")).isEqualTo("{\"id\":\"user\"}");
+      assertThat(cut.get("realm", "user", "full")).isNull();
+      assertThat(cut.get("other-realm", "user", "brief")).isNull();
+      assertThat(cut.getStats()).containsEntry("cache.hits", "1").containsEntry("cache.misses", "2");
+    }
+
+    @Test
+    void thenItExpiresAfterTheTimeToLive() {
+      Time.setOffset(61);
+
+      assertThat(cut.get("realm", "user", "brief")).isNull();
+      assertThat(cut.size()).isZero();
+    }
+
+    @Test
+    void thenItIsRemovedWhenTheUserIsInvalidated() {
+      cut.invalidate("user");
+
+      assertThat(cut.get("realm", "user", "brief")).isNull();
+    }
+
+    @Test
+    void thenTheLeastRecentlyUsedUserIsEvicted() {
+      cut.put("realm", "other-user", "brief", "{}", cut.generation());
+      cut.get("realm", "user", "brief");
+      cut.put("realm", "third-user", "brief", "{}", cut.generation());
+
+      assertThat(cut.get("realm", "user", "brief")).isNotNull();
+      assertThat(cut.get("realm", "other-user", "brief")).isNull();
+      assertThat(cut.getStats()).containsEntry("cache.evictions", "1");
+    }
+  }
+
+  @Nested
+  class GivenInvalidationWhileLoading {
+
+    @Test
+    void thenTheLoadedRepresentationIsNotCached() {
+      long generation = cut.generation();
+      cut.invalidate("user");
+      cut.put("realm", "user", "brief", "{}", generation);
+
+      assertThat(cut.get("realm", "user", "brief")).isNull();
+    }
+  }
+}
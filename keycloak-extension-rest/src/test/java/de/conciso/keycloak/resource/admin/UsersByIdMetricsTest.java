@@ -0,0 +1,34 @@
+package de.conciso.keycloak.resource.admin;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Nested;
+import org.junit.jupiter.api.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class UsersByIdMetricsTest {
+
+  @Nested
+  class GivenAFinishedRequest {
+
+    SimpleMeterRegistry registry = new SimpleMeterRegistry();
+    UsersByIdMetrics cut = new UsersByIdMetrics(registry);
+
+    @Test
+    void thenItIsRecordedOnceTaggedByRealmAndMode() {
+      UsersByIdMetrics.Request request = cut.start("realm", UserRepresentationBuilder.brief());
+      request.addIds(3);
+      request.notFound();
+      request.finish();
+      request.finish();
+
+      assertThat(registry.get("keycloak.users_by_id.ids").tags("realm", "realm", "mode", "brief").summary()
+          .totalAmount()).isEqualTo(3);
+      assertThat(registry.get("keycloak.users_by_id.not_found").counter().count()).isEqualTo(1);
+      assertThat(cut.getStats())
+          .containsEntry("requests", "1")
+          .containsEntry("ids", "3")
+          .containsEntry("notFound", "1");
+    }
+  }
+}
@@ -0,0 +1,290 @@
+package de.conciso.keycloak.loadtest;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import dasniko.testcontainers.keycloak.KeycloakContainer;
+import java.io.File;
+import java.io.IOException;
+import java.net.CookieManager;
+import java.net.URI;
+import java.net.URLEncoder;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpRequest.BodyPublishers;
+import java.net.http.HttpResponse;
+import java.net.http.HttpResponse.BodyHandlers;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+import org.junit.jupiter.api.Test;
+import org.keycloak.admin.client.resource.RealmResource;
+import org.keycloak.representations.idm.CredentialRepresentation;
+import org.keycloak.representations.idm.GroupRepresentation;
+import org.keycloak.representations.idm.UserRepresentation;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.testcontainers.containers.Network;
+import org.testcontainers.containers.PostgreSQLContainer;
+import org.testcontainers.containers.output.Slf4jLogConsumer;
+import org.testcontainers.junit.jupiter.Container;
+import org.testcontainers.junit.jupiter.Testcontainers;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Puts sustained concurrent load on a Postgres-backed Keycloak with all extensions installed and a realm of about a
+ * million generated users, and writes throughput and latency per scenario to a CSV file:
+ * <ul>
+ *   <li>users-by-id with random ids of the generated users</li>
+ *   <li>browser logins through the required-action-authenticator, accepting the terms it requires</li>
+ *   <li>client credentials logins of a service account, recorded by the last-login listener</li>
+ * </ul>
+ * All scenarios run at the same time, like on a production node.
+ */
+@Testcontainers
+class ExtensionsLoadIT {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(ExtensionsLoadIT.class);
+  private static final String KEYCLOAK_VERSION = System.getProperty("keycloak.version", "latest");
+  private static final String REALM_NAME = "load-test";
+  private static final String ADMIN_USER = "admin";
+  private static final String ADMIN_PASS = "admin";
+  private static final String REDIRECT_URI = "http://localhost/callback";
+  private static final String LOGIN_USER_PREFIX = "login-user-";
+  private static final String LOGIN_USER_PASSWORD = "login-password";
+  private static final Pattern FORM_ACTION = Pattern.compile("<form[^>]*\\saction=\"([^\"]+)\"");
+  private static final ObjectMapper MAPPER = new ObjectMapper();
+
+  private static final int USERS = Integer.getInteger("loadtest.users", 1_000_000);
+  private static final int GROUPS = Integer.getInteger("loadtest.groups", 100);
+  private static final int LOGIN_USERS = Integer.getInteger("loadtest.loginUsers", 100);
+  private static final int THREADS = Integer.getInteger("loadtest.threads", 16);
+  private static final int IDS_PER_REQUEST = Integer.getInteger("loadtest.idsPerRequest", 100);
+  private static final Duration WARM_UP = Duration.ofSeconds(Long.getLong("loadtest.warmUpSeconds", 60));
+  private static final Duration DURATION = Duration.ofSeconds(Long.getLong("loadtest.durationSeconds", 300));
+  private static final Path REPORT = Path.of(System.getProperty("loadtest.report", "target/load-test-report.csv"));
+
+  private static final Network network = Network.newNetwork();
+
+  @Container
+  private static final PostgreSQLContainer<?> postgres = new PostgreSQLContainer<>("postgres:17-alpine")
+      .withNetwork(network)
+      .withNetworkAliases("postgres")
+      .withDatabaseName("keycloak")
+      .withUsername("keycloak")
+      .withPassword("keycloak");
+
+  @Container
+  private static final KeycloakContainer keycloak =
+      new KeycloakContainer("quay.io/keycloak/keycloak:" + KEYCLOAK_VERSION)
+          .withNetwork(network)
+          .dependsOn(postgres)
+          .withEnv("KC_BOOTSTRAP_ADMIN_USERNAME", ADMIN_USER)
+          .withEnv("KC_BOOTSTRAP_ADMIN_PASSWORD", ADMIN_PASS)
+          .withEnv("KC_DB", "postgres")
+          .withEnv("KC_DB_URL", "jdbc:postgresql://postgres:5432/keycloak")
+          .withEnv("KC_DB_USERNAME", "keycloak")
+          .withEnv("KC_DB_PASSWORD", "keycloak")
+          .withEnv("KC_DB_POOL_MAX_SIZE", "100")
+          .withLogConsumer(new Slf4jLogConsumer(LOGGER).withSeparateOutputStreams())
+          .withProviderLibsFrom(providers())
+          .withRealmImportFile("load-test-realm.json")
+          .withStartupTimeout(Duration.ofMinutes(5));
+
+  private final HttpClient httpClient = HttpClient.newHttpClient();
+
+  @Test
+  void reportThroughputAndLatency() throws Exception {
+    RealmResource realm = keycloak.getKeycloakAdminClient().realm(REALM_NAME);
+    for (int i = 0; i < GROUPS; i++) {
+      GroupRepresentation group = new GroupRepresentation();
+      group.setName("group-" + i);
+      realm.groups().add(group).close();
+    }
+    for (int i = 0; i < LOGIN_USERS; i++) {
+      realm.users().create(loginUser(i)).close();
+    }
+    LOGGER.info("Seeding {} users", USERS);
+    List<UUID> ids = new RealmSeeder(postgres.getJdbcUrl(), postgres.getUsername(), postgres.getPassword())
+        .seedUsers(REALM_NAME, USERS);
+    String adminToken = clientCredentialsToken("load-test-admin", "load-test-admin-secret");
+
+    List<LoadScenario> scenarios = List.of(
+        new LoadScenario("users-by-id", THREADS, () -> () -> usersById(adminToken, ids)),
+        new LoadScenario("browser-login", THREADS, () -> {
+          CookieManager cookies = new CookieManager();
+          HttpClient browser = HttpClient.newBuilder().cookieHandler(cookies).build();
+          return () -> {
+            cookies.getCookieStore().removeAll();
+            browserLogin(browser);
+          };
+        }),
+        new LoadScenario("client-credentials", THREADS,
+            () -> () -> clientCredentialsToken("load-test-service", "load-test-service-secret")));
+    LOGGER.info("Running {} scenarios with {} threads each for {} after a warm-up of {}", scenarios.size(), THREADS,
+        DURATION, WARM_UP);
+    List<CompletableFuture<LoadScenario.Result>> running = new ArrayList<>();
+    for (LoadScenario scenario : scenarios) {
+      running.add(CompletableFuture.supplyAsync(() -> {
+        try {
+          return scenario.run(WARM_UP, DURATION);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          throw new IllegalStateException(e);
+        }
+      }));
+    }
+    List<LoadScenario.Result> results = running.stream().map(CompletableFuture::join).toList();
+
+    List<String> report = new ArrayList<>();
+    report.add(LoadScenario.Result.CSV_HEADER);
+    results.forEach(result -> report.add(result.toCsv()));
+    Files.createDirectories(REPORT.toAbsolutePath().getParent());
+    Files.write(REPORT, report);
+    LOGGER.info("Load test report written to {}:\n{}", REPORT.toAbsolutePath(), String.join("\n", report));
+
+    assertThat(results).allSatisfy(result -> assertThat(result.errorRate()).isLessThan(0.01));
+  }
+
+  private void usersById(String adminToken, List<UUID> ids) throws IOException, InterruptedException {
+    ThreadLocalRandom random = ThreadLocalRandom.current();
+    List<String> requested = new ArrayList<>(IDS_PER_REQUEST);
+    for (int i = 0; i < IDS_PER_REQUEST; i++) {
+      requested.add(ids.get(random.nextInt(ids.size())).toString());
+    }
+    HttpRequest request = HttpRequest.newBuilder(realmUri("/admin/realms/" + REALM_NAME + "/users-by-id",
+            "?briefRepresentation=true"))
+        .header("Authorization", "Bearer " + adminToken)
+        .header("Content-Type", "application/json")
+        .header("Accept", "application/json")
+        .POST(BodyPublishers.ofString(MAPPER.writeValueAsString(requested)))
+        .build();
+    expectStatus(httpClient.send(request, BodyHandlers.discarding()), 200);
+  }
+
+  /**
+   * Logs in through the login form and accepts the terms the required-action-authenticator adds, until Keycloak
+   * redirects back with a code.
+   */
+  private void browserLogin(HttpClient browser) throws IOException, InterruptedException {
+    String username = LOGIN_USER_PREFIX + ThreadLocalRandom.current().nextInt(LOGIN_USERS);
+    URI authorization = realmUri("/realms/" + REALM_NAME + "/protocol/openid-connect/auth", "?" + form(Map.of(
+        "client_id", "load-test-web",
+        "response_type", "code",
+        "scope", "openid",
+        "redirect_uri", REDIRECT_URI)));
+    HttpResponse<String> loginPage = browse(browser, HttpRequest.newBuilder(authorization).build());
+    expectStatus(loginPage, 200);
+    HttpResponse<String> termsPage = browse(browser, postForm(formAction(loginPage.body()), Map.of(
+        "username", username,
+        "password", LOGIN_USER_PASSWORD,
+        "credentialId", "")));
+    expectStatus(termsPage, 200);
+    HttpResponse<String> redirect = browse(browser, postForm(formAction(termsPage.body()),
+        Map.of("accept", "Accept")));
+    expectStatus(redirect, 302);
+    String location = redirect.headers().firstValue("Location").orElse("");
+    if (!location.contains("code=")) {
+      throw new IllegalStateException("Login of " + username + " did not succeed, redirected to " + location);
+    }
+  }
+
+  /**
+   * Sends the request and follows redirects within Keycloak like a browser would.
+   *
+   * @return the first response that is not a redirect, or the redirect to the client
+   */
+  private static HttpResponse<String> browse(HttpClient browser, HttpRequest request)
+      throws IOException, InterruptedException {
+    HttpResponse<String> response = browser.send(request, BodyHandlers.ofString());
+    while (response.statusCode() == 302 || response.statusCode() == 303) {
+      String location = response.headers().firstValue("Location").orElseThrow();
+      if (location.startsWith(REDIRECT_URI)) {
+        return response;
+      }
+      URI next = response.request().uri().resolve(location);
+      response = browser.send(HttpRequest.newBuilder(next).build(), BodyHandlers.ofString());
+    }
+    return response;
+  }
+
+  private String clientCredentialsToken(String clientId, String secret) throws IOException, InterruptedException {
+    HttpRequest request = postForm(realmUri("/realms/" + REALM_NAME + "/protocol/openid-connect/token", ""),
+        Map.of(
+            "grant_type", "client_credentials",
+            "client_id", clientId,
+            "client_secret", secret));
+    HttpResponse<String> response = httpClient.send(request, BodyHandlers.ofString());
+    expectStatus(response, 200);
+    return MAPPER.readTree(response.body()).get("access_token").asText();
+  }
+
+  private static UserRepresentation loginUser(int i) {
+    CredentialRepresentation password = new CredentialRepresentation();
+    password.setType(CredentialRepresentation.PASSWORD);
+    password.setValue(LOGIN_USER_PASSWORD);
+    password.setTemporary(false);
+    UserRepresentation user = new UserRepresentation();
+    user.setUsername(LOGIN_USER_PREFIX + i);
+    user.setEmail(LOGIN_USER_PREFIX + i + "@example.com");
+    user.setEmailVerified(true);
+    user.setFirstName("Login");
+    user.setLastName("User " + i);
+    user.setEnabled(true);
+    user.setCredentials(List.of(password));
+    return user;
+  }
+
+  private static URI realmUri(String path, String query) {
+    return URI.create(keycloak.getAuthServerUrl() + path + query);
+  }
+
+  private static HttpRequest postForm(URI uri, Map<String, String> parameters) {
+    return HttpRequest.newBuilder(uri)
+        .header("Content-Type", "application/x-www-form-urlencoded")
+        .POST(BodyPublishers.ofString(form(parameters)))
+        .build();
+  }
+
+  private static String form(Map<String, String> parameters) {
+    return parameters.entrySet().stream()
+        .map(parameter -> parameter.getKey() + "=" + URLEncoder.encode(parameter.getValue(), StandardCharsets.UTF_8))
+        .collect(Collectors.joining("&"));
+  }
+
+  private static URI formAction(String page) {
+    Matcher matcher = FORM_ACTION.matcher(page);
+    if (!matcher.find()) {
+      throw new IllegalStateException("Page has no form");
+    }
+    return URI.create(matcher.group(1).replace("&amp;", "&"));
+  }
+
+  private static void expectStatus(HttpResponse<?> response, int status) {
+    if (response.statusCode() != status) {
+      throw new IllegalStateException(response.request().method() + " " + response.request().uri().getPath()
+          + " returned " + response.statusCode() + " instead of " + status);
+    }
+  }
+
+  /**
+   * @return the jars of the extensions, copied by the build
+   */
+  private static List<File> providers() {
+    File[] jars = new File("target/providers").listFiles((dir, name) -> name.endsWith(".jar"));
+    if (jars == null || jars.length == 0) {
+      throw new IllegalStateException("No providers in target/providers, run the load test with Maven");
+    }
+    return Arrays.asList(jars);
+  }
+}
@@ -0,0 +1,138 @@
+package de.conciso.keycloak.loadtest;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.function.Supplier;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Runs one kind of request from a number of threads for a given time and measures throughput and latency. Requests
+ * started during the warm-up are not measured.
+ */
+final class LoadScenario {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(LoadScenario.class);
+
+  /**
+   * A request, failing with an exception if it was not successful.
+   */
+  interface Operation {
+
+    void run() throws Exception;
+  }
+
+  private final String name;
+  private final int threads;
+  private final Supplier<Operation> operations;
+
+  /**
+   * @param operations creates the operation of each thread, so that it can keep its own client and cookies
+   */
+  LoadScenario(String name, int threads, Supplier<Operation> operations) {
+    this.name = name;
+    this.threads = threads;
+    this.operations = operations;
+  }
+
+  Result run(Duration warmUp, Duration duration) throws InterruptedException {
+    long measureFrom = System.nanoTime() + warmUp.toNanos();
+    long end = measureFrom + duration.toNanos();
+    List<Worker> workers = new ArrayList<>();
+    for (int i = 0; i < threads; i++) {
+      Worker worker = new Worker(operations.get(), measureFrom, end);
+      worker.setName(name + "-" + i);
+      worker.start();
+      workers.add(worker);
+    }
+    long errors = 0;
+    int count = 0;
+    for (Worker worker : workers) {
+      worker.join();
+      errors += worker.errors;
+      count += worker.count;
+    }
+    long[] latencies = new long[count];
+    int offset = 0;
+    for (Worker worker : workers) {
+      System.arraycopy(worker.latencies, 0, latencies, offset, worker.count);
+      offset += worker.count;
+    }
+    Arrays.sort(latencies);
+    return new Result(name, threads, count + errors, errors, duration.toMillis() / 1000.0,
+        percentile(latencies, 0.5), percentile(latencies, 0.99), count > 0 ? latencies[count - 1] : 0);
+  }
+
+  private static long percentile(long[] sorted, double percentile) {
+    if (sorted.length == 0) {
+      return 0;
+    }
+    return sorted[(int) Math.ceil(percentile * sorted.length) - 1];
+  }
+
+  record Result(String scenario, int threads, long requests, long errors, double seconds, long p50Nanos,
+                long p99Nanos, long maxNanos) {
+
+    static final String CSV_HEADER =
+        "scenario,threads,requests,errors,throughputPerSecond,p50Millis,p99Millis,maxMillis";
+
+    double errorRate() {
+      return requests == 0 ? 1 : (double) errors / requests;
+    }
+
+    String toCsv() {
+      return String.format(Locale.ROOT, "%s,%d,%d,%d,%.1f,%.1f,%.1f,%.1f", scenario, threads, requests, errors,
+          (requests - errors) / seconds, p50Nanos / 1e6, p99Nanos / 1e6, maxNanos / 1e6);
+    }
+  }
+
+  private static final class Worker extends Thread {
+
+    private final Operation operation;
+    private final long measureFrom;
+    private final long end;
+    private long[] latencies = new long[1024];
+    private int count;
+    private long errors;
+    private int logged;
+
+    private Worker(Operation operation, long measureFrom, long end) {
+      this.operation = operation;
+      this.measureFrom = measureFrom;
+      this.end = end;
+    }
+
+    @Override
+    public void run() {
+      long start;
+      while ((start = System.nanoTime()) < end) {
+        boolean successful;
+        try {
+          operation.run();
+          successful = true;
+        } catch (Exception e) {
+          // only the first errors, a broken build would flood the log otherwise
+          if (logged++ < 3) {
+            LOGGER.warn("{} failed", getName(), e);
+          }
+          successful = false;
+        }
+        long latency = System.nanoTime() - start;
+        if (start < measureFrom) {
+          continue;
+        }
+        if (!successful) {
+          errors++;
+        } else {
+          if (count == latencies.length) {
+            latencies = Arrays.copyOf(latencies, count * 2);
+          }
+          latencies[count++] = latency;
+        }
+      }
+    }
+  }
+}
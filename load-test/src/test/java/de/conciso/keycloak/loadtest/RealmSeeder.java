@@ -0,0 +1,111 @@
+package de.conciso.keycloak.loadtest;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Inserts synthetic users straight into the Keycloak database, since creating a million users through the admin API
+ * would take hours. The users have attributes and are members of one of the groups of the realm, but no credentials.
+ * <p>
+ * Keycloak does not cache users it has not loaded yet, so the inserted users are visible right away. Groups are part
+ * of the realm cache and have to be created through the admin API beforehand.
+ */
+final class RealmSeeder {
+
+  static final String USERNAME_PREFIX = "load-user-";
+
+  private final String jdbcUrl;
+  private final String username;
+  private final String password;
+
+  RealmSeeder(String jdbcUrl, String username, String password) {
+    this.jdbcUrl = jdbcUrl;
+    this.username = username;
+    this.password = password;
+  }
+
+  /**
+   * @return the ids of the inserted users
+   */
+  List<UUID> seedUsers(String realmName, int count) throws SQLException {
+    try (Connection connection = DriverManager.getConnection(jdbcUrl, username, password)) {
+      String realmId = realmId(connection, realmName);
+      try (PreparedStatement users = connection.prepareStatement("""
+          INSERT INTO user_entity (id, username, email, email_constraint, email_verified, enabled, first_name,
+            last_name, realm_id, created_timestamp, not_before)
+          SELECT gen_random_uuid()::text, ? || n, ? || n || '@example.com', ? || n || '@example.com', true, true,
+            'First ' || n, 'Last ' || n, ?, ?, 0
+          FROM generate_series(1, ?) AS n
+          """)) {
+        users.setString(1, USERNAME_PREFIX);
+        users.setString(2, USERNAME_PREFIX);
+        users.setString(3, USERNAME_PREFIX);
+        users.setString(4, realmId);
+        users.setLong(5, System.currentTimeMillis());
+        users.setInt(6, count);
+        users.executeUpdate();
+      }
+      try (PreparedStatement attributes = connection.prepareStatement("""
+          INSERT INTO user_attribute (id, name, value, user_id)
+          SELECT gen_random_uuid()::text, attribute.name, attribute.prefix || (abs(hashtext(u.id)) % 50), u.id
+          FROM user_entity u
+          CROSS JOIN (VALUES ('department', 'department-'), ('costCenter', 'cc-')) AS attribute(name, prefix)
+          WHERE u.realm_id = ? AND u.username LIKE ?
+          """)) {
+        attributes.setString(1, realmId);
+        attributes.setString(2, USERNAME_PREFIX + "%");
+        attributes.executeUpdate();
+      }
+      try (PreparedStatement memberships = connection.prepareStatement("""
+          WITH realm_groups AS (SELECT array_agg(id) AS ids FROM keycloak_group WHERE realm_id = ?)
+          INSERT INTO user_group_membership (group_id, user_id, membership_type)
+          SELECT g.ids[1 + abs(hashtext(u.id)) % cardinality(g.ids)], u.id, 'UNMANAGED'
+          FROM user_entity u, realm_groups g
+          WHERE u.realm_id = ? AND u.username LIKE ? AND cardinality(g.ids) > 0
+          """)) {
+        memberships.setString(1, realmId);
+        memberships.setString(2, realmId);
+        memberships.setString(3, USERNAME_PREFIX + "%");
+        memberships.executeUpdate();
+      }
+      try (Statement statement = connection.createStatement()) {
+        statement.execute("ANALYZE user_entity, user_attribute, user_group_membership");
+      }
+      return userIds(connection, realmId);
+    }
+  }
+
+  private static String realmId(Connection connection, String realmName) throws SQLException {
+    try (PreparedStatement statement = connection.prepareStatement("SELECT id FROM realm WHERE name = ?")) {
+      statement.setString(1, realmName);
+      try (ResultSet result = statement.executeQuery()) {
+        if (!result.next()) {
+          throw new IllegalStateException("Realm " + realmName + " does not exist");
+        }
+        return result.getString(1);
+      }
+    }
+  }
+
+  private static List<UUID> userIds(Connection connection, String realmId) throws SQLException {
+    List<UUID> ids = new ArrayList<>();
+    try (PreparedStatement statement = connection.prepareStatement(
+        "SELECT id FROM user_entity WHERE realm_id = ? AND username LIKE ?")) {
+      statement.setString(1, realmId);
+      statement.setString(2, USERNAME_PREFIX + "%");
+      try (ResultSet result = statement.executeQuery()) {
+        while (result.next()) {
+          ids.add(UUID.fromString(result.getString(1)));
+        }
+      }
+    }
+    return ids;
+  }
+}
@@ -0,0 +1,208 @@
+package de.conciso.keycloak.user.mgmt;
+
+import org.infinispan.Cache;
+import org.infinispan.configuration.cache.CacheMode;
+import org.infinispan.configuration.cache.ConfigurationBuilder;
+import org.infinispan.context.Flag;
+import org.infinispan.distribution.DistributionManager;
+import org.infinispan.manager.EmbeddedCacheManager;
+import org.jboss.logging.Logger;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * Aggregates the last logins of all nodes in a distributed Infinispan cache keyed by user id, so that the last login
+ * of each user is written by a single node, the primary owner of its key, instead of by every node the user logged in
+ * on.
+ * <p>
+ * Nodes merge the logins collected by their {@link LastLoginWriteBehind} into the cache, keeping the latest time and
+ * adding up the logins. Periodically each node writes the entries it is the primary owner of and removes them from the
+ * cache, unless further logins were merged in meanwhile. If a node leaves the cluster, the backup owners take over its
+ * entries. Logins of a batch that failed to merge halfway are merged again with the next flush and counted twice.
+ */
+final class ClusterLastLogins {
+
+    private static final Logger log = Logger.getLogger(ClusterLastLogins.class);
+    static final String CACHE_NAME = "conciso-user-last-login";
+
+    private final Supplier<Cache<String, String>> cacheLookup;
+    private final LastLoginWriteBehind.BatchWriter writer;
+    private final int maxBatchSize;
+    private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "user-last-login-cluster");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private volatile Cache<String, String> cache;
+
+    /**
+     * @param cacheLookup looks the cache up on first use, when the Infinispan of Keycloak is available
+     * @param writer      persists the logins this node is the primary owner of
+     */
+    ClusterLastLogins(Supplier<Cache<String, String>> cacheLookup, LastLoginWriteBehind.BatchWriter writer,
+                      int maxBatchSize) {
+        this.cacheLookup = cacheLookup;
+        this.writer = writer;
+        this.maxBatchSize = maxBatchSize;
+    }
+
+    /**
+     * @return the cache of the given cache manager, defined as distributed cache with two owners unless Keycloak runs
+     * on a single node or it has been configured explicitly
+     */
+    static Cache<String, String> getOrDefineCache(EmbeddedCacheManager cacheManager) {
+        if (cacheManager.getCacheConfiguration(CACHE_NAME) == null) {
+            ConfigurationBuilder configuration = new ConfigurationBuilder();
+            if (cacheManager.getCacheManagerConfiguration().isClustered()) {
+                configuration.clustering().cacheMode(CacheMode.DIST_SYNC).hash().numOwners(2);
+            }
+            cacheManager.defineConfiguration(CACHE_NAME, configuration.build());
+        }
+        return cacheManager.getCache(CACHE_NAME);
+    }
+
+    void start(Duration interval) {
+        executor.scheduleWithFixedDelay(this::flush, interval.toMillis(), interval.toMillis(), TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Merges logins collected on this node into the cache, used as {@link LastLoginWriteBehind.BatchWriter}.
+     */
+    void merge(List<LastLogin> batch) {
+        Cache<String, String> cache = cache();
+        for (LastLogin login : batch) {
+            String value = encode(login);
+            while (true) {
+                String current = cache.putIfAbsent(login.userId(), value);
+                if (current == null
+                    || cache.replace(login.userId(), current, encode(decode(login.userId(), current).merge(login)))) {
+                    break;
+                }
+            }
+        }
+    }
+
+    /**
+     * Writes the logins this node is the primary owner of. Batches that fail stay in the cache and are retried with
+     * the next flush.
+     */
+    synchronized void flush() {
+        Cache<String, String> cache;
+        try {
+            cache = cache();
+        } catch (RuntimeException e) {
+            log.warn("Last login cache not available yet, retrying with the next flush", e);
+            return;
+        }
+        List<LastLogin> batch = new ArrayList<>(maxBatchSize);
+        for (Map.Entry<String, String> entry : cache.getAdvancedCache().withFlags(Flag.CACHE_MODE_LOCAL).entrySet()) {
+            if (!isPrimaryOwner(cache, entry.getKey())) {
+                continue;
+            }
+            batch.add(decode(entry.getKey(), entry.getValue()));
+            if (batch.size() == maxBatchSize) {
+                write(cache, batch);
+                batch = new ArrayList<>(maxBatchSize);
+            }
+        }
+        if (!batch.isEmpty()) {
+            write(cache, batch);
+        }
+    }
+
+    private static boolean isPrimaryOwner(Cache<String, String> cache, String key) {
+        DistributionManager distribution = cache.getAdvancedCache().getDistributionManager();
+        return distribution == null || distribution.getCacheTopology().getDistribution(key).isPrimary();
+    }
+
+    private void write(Cache<String, String> cache, List<LastLogin> batch) {
+        try {
+            writer.write(batch);
+        } catch (RuntimeException e) {
+            log.warnf(e, "Could not persist %d last logins, retrying with the next flush", batch.size());
+            return;
+        }
+        batch.forEach(written -> remove(cache, written));
+    }
+
+    /**
+     * Removes a written login from the cache, keeping the logins merged in since it was read.
+     */
+    private static void remove(Cache<String, String> cache, LastLogin written) {
+        while (true) {
+            String current = cache.get(written.userId());
+            if (current == null) {
+                return;
+            }
+            LastLogin login = decode(written.userId(), current);
+            // each merge adds logins, so an unchanged count means nothing was merged in
+            boolean removed = login.logins() <= written.logins()
+                ? cache.remove(written.userId(), current)
+                : cache.replace(written.userId(), current, encode(new LastLogin(login.realmId(), login.userId(),
+                    login.time(), login.logins() - written.logins())));
+            if (removed) {
+                return;
+            }
+        }
+    }
+
+    int getPendingCount() {
+        Cache<String, String> cache = this.cache;
+        return cache != null ? cache.getAdvancedCache().withFlags(Flag.CACHE_MODE_LOCAL).size() : 0;
+    }
+
+    private Cache<String, String> cache() {
+        Cache<String, String> cache = this.cache;
+        if (cache == null) {
+            synchronized (cacheLookup) {
+                cache = this.cache;
+                if (cache == null) {
+                    cache = cacheLookup.get();
+                    this.cache = cache;
+                }
+            }
+        }
+        return cache;
+    }
+
+    // plain strings, so that the cache needs no marshaller of its own
+    static String encode(LastLogin login) {
+        return login.time().toEpochMilli() + ":" + login.logins() + ":" + login.realmId();
+    }
+
+    static LastLogin decode(String userId, String value) {
+        String[] parts = value.split(":", 3);
+        return new LastLogin(parts[2], userId, Instant.ofEpochMilli(Long.parseLong(parts[0])),
+            Integer.parseInt(parts[1]));
+    }
+
+    /**
+     * Stops the background flushes and writes what this node still owns. Entries owned by other nodes are left to
+     * them.
+     */
+    void close() {
+        executor.shutdown();
+        try {
+            executor.awaitTermination(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (cache == null) {
+            return;
+        }
+        try {
+            flush();
+        } catch (RuntimeException e) {
+            // the backup owners write them instead
+            log.warn("Could not write the last logins owned by this node on shutdown", e);
+        }
+    }
+}
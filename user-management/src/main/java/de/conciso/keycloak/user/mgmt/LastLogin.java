@@ -0,0 +1,21 @@
+package de.conciso.keycloak.user.mgmt;
+
+import java.time.Instant;
+
+/**
+ * Successful logins of a (non-lightweight) user or service account that have yet to be persisted, the latest one at
+ * the given time.
+ */
+record LastLogin(String realmId, String userId, Instant time, int logins) {
+
+    LastLogin(String realmId, String userId, Instant time) {
+        this(realmId, userId, time, 1);
+    }
+
+    /**
+     * @return the logins of both, at the later of both times
+     */
+    LastLogin merge(LastLogin other) {
+        return new LastLogin(realmId, userId, time.isAfter(other.time) ? time : other.time, logins + other.logins);
+    }
+}
@@ -0,0 +1,72 @@
+package de.conciso.keycloak.user.mgmt;
+
+import jakarta.persistence.Column;
+import jakarta.persistence.Entity;
+import jakarta.persistence.Id;
+import jakarta.persistence.NamedQueries;
+import jakarta.persistence.NamedQuery;
+import jakarta.persistence.Table;
+
+/**
+ * The last login of a user, stored in a table of its own instead of a user attribute. Indexed by realm and time for
+ * queries such as all users that did not log in since a given time, see the changelog of
+ * {@link LastLoginJpaEntityProvider}.
+ */
+@Entity
+@Table(name = "CONCISO_USER_LAST_LOGIN")
+@NamedQueries({
+    @NamedQuery(name = "updateLastLogin", query = "update LastLoginEntity e"
+        + " set e.lastLogin = case when e.lastLogin < :lastLogin then :lastLogin else e.lastLogin end,"
+        + " e.loginCount = e.loginCount + :logins"
+        + " where e.userId = :userId"),
+    @NamedQuery(name = "deleteLastLoginByUser", query = "delete from LastLoginEntity e where e.userId = :userId"),
+    @NamedQuery(name = "deleteLastLoginsByRealm", query = "delete from LastLoginEntity e where e.realmId = :realmId")
+})
+public class LastLoginEntity {
+
+    @Id
+    @Column(name = "USER_ID", length = 36)
+    private String userId;
+
+    @Column(name = "REALM_ID", length = 36, nullable = false)
+    private String realmId;
+
+    /**
+     * Epoch millis of the last login.
+     */
+    @Column(name = "LAST_LOGIN", nullable = false)
+    private long lastLogin;
+
+    /**
+     * Number of logins written, logins skipped because of the granularity or dropped by the async queue are not
+     * counted.
+     */
+    @Column(name = "LOGIN_COUNT", nullable = false)
+    private long loginCount;
+
+    public LastLoginEntity() {
+    }
+
+    LastLoginEntity(String userId, String realmId, long lastLogin, long loginCount) {
+        this.userId = userId;
+        this.realmId = realmId;
+        this.lastLogin = lastLogin;
+        this.loginCount = loginCount;
+    }
+
+    public String getUserId() {
+        return userId;
+    }
+
+    public String getRealmId() {
+        return realmId;
+    }
+
+    public long getLastLogin() {
+        return lastLogin;
+    }
+
+    public long getLoginCount() {
+        return loginCount;
+    }
+}
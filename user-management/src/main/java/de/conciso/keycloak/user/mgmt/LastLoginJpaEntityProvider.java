@@ -0,0 +1,31 @@
+package de.conciso.keycloak.user.mgmt;
+
+import org.keycloak.connections.jpa.entityprovider.JpaEntityProvider;
+
+import java.util.List;
+
+/**
+ * Registers {@link LastLoginEntity} and creates its table with Keycloak's database migration. The table is created
+ * whether or not the entity storage of the listener is enabled, so that it can be switched on at any time.
+ */
+public final class LastLoginJpaEntityProvider implements JpaEntityProvider {
+
+    @Override
+    public List<Class<?>> getEntities() {
+        return List.of(LastLoginEntity.class);
+    }
+
+    @Override
+    public String getChangelogLocation() {
+        return "META-INF/conciso-user-last-login-changelog.xml";
+    }
+
+    @Override
+    public String getFactoryId() {
+        return LastLoginJpaEntityProviderFactory.ID;
+    }
+
+    @Override
+    public void close() {
+    }
+}
@@ -0,0 +1,34 @@
+package de.conciso.keycloak.user.mgmt;
+
+import org.keycloak.Config;
+import org.keycloak.connections.jpa.entityprovider.JpaEntityProvider;
+import org.keycloak.connections.jpa.entityprovider.JpaEntityProviderFactory;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+
+public final class LastLoginJpaEntityProviderFactory implements JpaEntityProviderFactory {
+
+    static final String ID = "conciso-user-last-login";
+
+    @Override
+    public JpaEntityProvider create(KeycloakSession session) {
+        return new LastLoginJpaEntityProvider();
+    }
+
+    @Override
+    public void init(Config.Scope scope) {
+    }
+
+    @Override
+    public void postInit(KeycloakSessionFactory keycloakSessionFactory) {
+    }
+
+    @Override
+    public void close() {
+    }
+
+    @Override
+    public String getId() {
+        return ID;
+    }
+}
@@ -0,0 +1,202 @@
+package de.conciso.keycloak.user.mgmt;
+
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.jboss.logging.Logger;
+import org.keycloak.events.EventType;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Hands login events over to worker threads, so that logins do not wait for the lookups and the write of the last
+ * login. Each event is processed in a transaction of its own by the {@link JobHandler}.
+ * <p>
+ * The queue is bounded. When it is full, new events are dropped right away, dropped after waiting for a free slot, or
+ * merged into a queued event of the same user or client if there is one, depending on the {@link Overflow} policy.
+ */
+final class LastLoginQueue {
+
+    private static final Logger log = Logger.getLogger(LastLoginQueue.class);
+    private static final String PREFIX = "keycloak.user_last_login.async";
+
+    enum Overflow {
+        DROP, BLOCK, COALESCE
+    }
+
+    /**
+     * The data of a login event needed to record it later on.
+     */
+    record Job(EventType type, String realmId, String userId, String clientId, Instant time) {
+
+        private Key key() {
+            return new Key(type, realmId, type == EventType.CLIENT_LOGIN ? clientId : userId);
+        }
+
+        private Job latest(Job other) {
+            return other.time.isAfter(time) ? other : this;
+        }
+    }
+
+    private record Key(EventType type, String realmId, String subject) {
+    }
+
+    interface JobHandler {
+
+        void handle(Job job);
+    }
+
+    private final JobHandler handler;
+    private final Overflow overflow;
+    private final Duration maxBlock;
+    // jobs, or keys of coalesced jobs
+    private final BlockingQueue<Object> queue;
+    private final ConcurrentMap<Key, Job> coalesced = new ConcurrentHashMap<>();
+    private final List<Thread> workers = new ArrayList<>();
+    private final LongAdder processed = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+    private volatile boolean closed;
+
+    /**
+     * @param maxBlock how long a login waits for a free slot with {@link Overflow#BLOCK}
+     */
+    LastLoginQueue(JobHandler handler, int maxQueued, Overflow overflow, Duration maxBlock, MeterRegistry registry) {
+        this.handler = handler;
+        this.overflow = overflow;
+        this.maxBlock = maxBlock;
+        this.queue = new ArrayBlockingQueue<>(maxQueued);
+        Gauge.builder(PREFIX + ".queue_depth", this, LastLoginQueue::getDepth)
+            .description("Login events waiting to be recorded")
+            .register(registry);
+        FunctionCounter.builder(PREFIX + ".dropped", dropped, LongAdder::sum)
+            .description("Login events not recorded because the queue was full")
+            .register(registry);
+        FunctionCounter.builder(PREFIX + ".failed", failed, LongAdder::sum)
+            .description("Login events that could not be recorded")
+            .register(registry);
+    }
+
+    void start(int workerCount) {
+        for (int i = 0; i < workerCount; i++) {
+            Thread worker = new Thread(this::work, "user-last-login-async-" + i);
+            worker.setDaemon(true);
+            worker.start();
+            workers.add(worker);
+        }
+    }
+
+    void add(Job job) {
+        if (closed) {
+            dropped.increment();
+            return;
+        }
+        boolean queued = switch (overflow) {
+            case DROP -> queue.offer(job);
+            case BLOCK -> offer(job);
+            case COALESCE -> coalesce(job);
+        };
+        if (!queued) {
+            dropped.increment();
+        }
+    }
+
+    private boolean offer(Job job) {
+        try {
+            return queue.offer(job, maxBlock.toMillis(), TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    private boolean coalesce(Job job) {
+        boolean[] queued = {true};
+        // the key is queued while the map is locked for it, so that a job is never in the map without its key queued
+        coalesced.compute(job.key(), (key, pending) -> {
+            if (pending != null) {
+                return pending.latest(job);
+            }
+            if (queue.offer(key)) {
+                return job;
+            }
+            queued[0] = false;
+            return null;
+        });
+        return queued[0];
+    }
+
+    private void work() {
+        while (true) {
+            Object next;
+            try {
+                next = queue.poll(100, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                return;
+            }
+            if (next == null) {
+                if (closed) {
+                    return;
+                }
+                continue;
+            }
+            Job job = next instanceof Key key ? coalesced.remove(key) : (Job) next;
+            if (job != null) {
+                process(job);
+            }
+        }
+    }
+
+    private void process(Job job) {
+        try {
+            handler.handle(job);
+            processed.increment();
+        } catch (RuntimeException e) {
+            failed.increment();
+            log.warnf(e, "Could not record %s of %s in realm %s", job.type(),
+                job.type() == EventType.CLIENT_LOGIN ? job.clientId() : job.userId(), job.realmId());
+        }
+    }
+
+    int getDepth() {
+        return queue.size();
+    }
+
+    Map<String, String> getStats() {
+        Map<String, String> stats = new LinkedHashMap<>();
+        stats.put("async.queueDepth", String.valueOf(getDepth()));
+        stats.put("async.processed", String.valueOf(processed.sum()));
+        stats.put("async.dropped", String.valueOf(dropped.sum()));
+        stats.put("async.failed", String.valueOf(failed.sum()));
+        return stats;
+    }
+
+    /**
+     * Stops accepting events and waits for the workers to process what is still queued.
+     */
+    void close() {
+        closed = true;
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        try {
+            for (Thread worker : workers) {
+                worker.join(Math.max(1, TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime())));
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (!queue.isEmpty()) {
+            log.warnf("Dropping %d login events still queued on shutdown", queue.size());
+        }
+    }
+}
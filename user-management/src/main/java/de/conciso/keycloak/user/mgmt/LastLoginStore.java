@@ -0,0 +1,169 @@
+package de.conciso.keycloak.user.mgmt;
+
+import jakarta.persistence.EntityManager;
+import org.jboss.logging.Logger;
+import org.keycloak.connections.jpa.JpaConnectionProvider;
+import org.keycloak.models.*;
+import org.keycloak.models.utils.KeycloakModelUtils;
+
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Persists last logins of (non-lightweight) users, as user attribute, as {@link LastLoginEntity} or both, in which
+ * case the attribute only mirrors the entity for the admin console. Entities are written once the transaction of the
+ * login committed, in a transaction of their own, so that a failed write never fails the login.
+ */
+final class LastLoginStore {
+
+    static final String LAST_SUCCESSFUL_LOGIN_ATTR_KEY = "lastSuccessfulLoginAt";
+
+    static final LastLoginStore ATTRIBUTE = new LastLoginStore(false, true);
+
+    private static final Logger log = Logger.getLogger(LastLoginStore.class);
+    private static final String PENDING_ENTITIES = LastLoginStore.class.getName() + ".pendingEntities";
+
+    private final boolean entity;
+    private final boolean attribute;
+
+    /**
+     * Runs a task in a transaction of its own, failing if the transaction cannot be committed.
+     */
+    @FunctionalInterface
+    interface Transactions {
+        void run(KeycloakSessionTask task);
+    }
+
+    private LastLoginStore(boolean entity, boolean attribute) {
+        this.entity = entity;
+        this.attribute = attribute;
+    }
+
+    static LastLoginStore entity(boolean attributeMirror) {
+        return new LastLoginStore(true, attributeMirror);
+    }
+
+    boolean isEntity() {
+        return entity;
+    }
+
+    /**
+     * @param user the user of the login if it has been loaded already, otherwise it is only loaded if the attribute
+     *             has to be written
+     */
+    void write(KeycloakSession session, RealmModel realm, LastLogin login, UserModel user) {
+        if (entity) {
+            writeEntityAfterCommit(session, login);
+        }
+        if (attribute) {
+            if (user == null) {
+                user = session.users().getUserById(realm, login.userId());
+            }
+            if (user != null) {
+                user.setSingleAttribute(LAST_SUCCESSFUL_LOGIN_ATTR_KEY, format(login.time()));
+            }
+        }
+    }
+
+    /**
+     * Collects the logins of a session, so that they are written in one transaction.
+     */
+    @SuppressWarnings("unchecked")
+    private static void writeEntityAfterCommit(KeycloakSession session, LastLogin login) {
+        KeycloakSessionFactory sessionFactory = session.getKeycloakSessionFactory();
+        Transactions transactions = task -> KeycloakModelUtils.runJobInTransaction(sessionFactory, task);
+        KeycloakTransactionManager transaction = session.getTransactionManager();
+        if (!transaction.isActive()) {
+            writeEntities(transactions, List.of(login));
+            return;
+        }
+        List<LastLogin> logins = session.getAttribute(PENDING_ENTITIES, List.class);
+        if (logins == null) {
+            List<LastLogin> pendingLogins = new ArrayList<>();
+            session.setAttribute(PENDING_ENTITIES, pendingLogins);
+            transaction.enlistAfterCompletion(new AbstractKeycloakTransaction() {
+                @Override
+                protected void commitImpl() {
+                    writeEntities(transactions, pendingLogins);
+                }
+
+                @Override
+                protected void rollbackImpl() {
+
+                }
+            });
+            logins = pendingLogins;
+        }
+        logins.add(login);
+    }
+
+    /**
+     * Writes the logins in one transaction, or one by one if that fails, e.g. because another node inserted the row
+     * of a user at the same time. A login whose write fails is retried once, then the update finds that row.
+     */
+    static void writeEntities(Transactions transactions, List<LastLogin> logins) {
+        try {
+            transactions.run(session -> logins.forEach(login -> writeEntity(session, login)));
+            return;
+        } catch (RuntimeException e) {
+            if (logins.size() > 1) {
+                log.debugf(e, "Could not write %d last logins at once, writing them one by one", logins.size());
+            }
+        }
+        for (LastLogin login : logins) {
+            try {
+                transactions.run(session -> writeEntity(session, login));
+            } catch (RuntimeException first) {
+                try {
+                    transactions.run(session -> writeEntity(session, login));
+                } catch (RuntimeException e) {
+                    log.warnf(e, "Could not write the last login of user %s in realm %s", login.userId(),
+                        login.realmId());
+                }
+            }
+        }
+    }
+
+    /**
+     * Updates the row of the user if there is one, so that the common case takes a single statement, and inserts it
+     * otherwise, unless the user has been removed in the meantime.
+     */
+    private static void writeEntity(KeycloakSession session, LastLogin login) {
+        EntityManager em = session.getProvider(JpaConnectionProvider.class).getEntityManager();
+        long lastLogin = login.time().toEpochMilli();
+        int updated = em.createNamedQuery("updateLastLogin")
+            .setParameter("userId", login.userId())
+            .setParameter("lastLogin", lastLogin)
+            .setParameter("logins", (long) login.logins())
+            .executeUpdate();
+        if (updated > 0) {
+            return;
+        }
+        RealmModel realm = session.realms().getRealm(login.realmId());
+        if (realm == null || session.users().getUserById(realm, login.userId()) == null) {
+            return;
+        }
+        em.persist(new LastLoginEntity(login.userId(), login.realmId(), lastLogin, login.logins()));
+    }
+
+    static void removeUser(KeycloakSession session, String userId) {
+        session.getProvider(JpaConnectionProvider.class).getEntityManager()
+            .createNamedQuery("deleteLastLoginByUser")
+            .setParameter("userId", userId)
+            .executeUpdate();
+    }
+
+    static void removeRealm(KeycloakSession session, String realmId) {
+        session.getProvider(JpaConnectionProvider.class).getEntityManager()
+            .createNamedQuery("deleteLastLoginsByRealm")
+            .setParameter("realmId", realmId)
+            .executeUpdate();
+    }
+
+    static String format(Instant time) {
+        return time.atOffset(ZoneOffset.UTC).format(DateTimeFormatter.ISO_DATE_TIME);
+    }
+}
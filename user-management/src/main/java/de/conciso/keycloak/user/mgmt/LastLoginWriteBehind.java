@@ -0,0 +1,110 @@
+package de.conciso.keycloak.user.mgmt;
+
+import org.jboss.logging.Logger;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Collects last logins in memory and persists them in batches in the background, so that logins do not pay for the
+ * write. Several logins of the same user before the next flush are coalesced into one with the latest time and the
+ * number of logins.
+ * <p>
+ * Pending logins are flushed on the configured interval, as soon as a full batch is pending and on shutdown. Logins
+ * still pending when a node fails are lost.
+ */
+final class LastLoginWriteBehind {
+
+    private static final Logger log = Logger.getLogger(LastLoginWriteBehind.class);
+
+    /**
+     * Persists one batch of logins, typically in one transaction.
+     */
+    interface BatchWriter {
+
+        void write(List<LastLogin> batch);
+    }
+
+    private final BatchWriter writer;
+    private final int maxBatchSize;
+    private final Map<UserKey, LastLogin> pending = new ConcurrentHashMap<>();
+    private final AtomicBoolean flushRequested = new AtomicBoolean();
+    private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "user-last-login-write-behind");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    LastLoginWriteBehind(BatchWriter writer, int maxBatchSize) {
+        this.writer = writer;
+        this.maxBatchSize = maxBatchSize;
+    }
+
+    void start(Duration interval) {
+        executor.scheduleWithFixedDelay(this::flush, interval.toMillis(), interval.toMillis(), TimeUnit.MILLISECONDS);
+    }
+
+    void add(LastLogin login) {
+        pending.merge(new UserKey(login.realmId(), login.userId()), login, LastLogin::merge);
+        if (pending.size() >= maxBatchSize && flushRequested.compareAndSet(false, true)) {
+            executor.execute(this::flush);
+        }
+    }
+
+    int getPendingCount() {
+        return pending.size();
+    }
+
+    /**
+     * Writes all pending logins. Batches that fail are kept pending and retried with the next flush, merged with the
+     * logins of the same users that arrived in the meantime.
+     */
+    synchronized void flush() {
+        flushRequested.set(false);
+        List<LastLogin> batch = new ArrayList<>(Math.min(maxBatchSize, pending.size()));
+        for (UserKey key : pending.keySet()) {
+            LastLogin login = pending.remove(key);
+            if (login == null) {
+                continue;
+            }
+            batch.add(login);
+            if (batch.size() == maxBatchSize) {
+                write(batch);
+                batch = new ArrayList<>(maxBatchSize);
+            }
+        }
+        if (!batch.isEmpty()) {
+            write(batch);
+        }
+    }
+
+    private void write(List<LastLogin> batch) {
+        try {
+            writer.write(batch);
+        } catch (RuntimeException e) {
+            log.warnf(e, "Could not persist %d last logins, retrying with the next flush", batch.size());
+            batch.forEach(login -> pending.merge(new UserKey(login.realmId(), login.userId()), login,
+                LastLogin::merge));
+        }
+    }
+
+    /**
+     * Stops the background flushes and writes what is still pending.
+     */
+    void close() {
+        executor.shutdown();
+        try {
+            executor.awaitTermination(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        flush();
+    }
+}
@@ -0,0 +1,78 @@
+package de.conciso.keycloak.user.mgmt;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Remembers when the last login of a user was written on this node, so that further logins within the configured
+ * granularity can be skipped without reading the stored value back.
+ * <p>
+ * Users are kept in segments ordered by the time their login was written, each holding its share of the maximum number
+ * of users. Once a segment is full, the user written least recently is evicted, so that eviction takes constant time
+ * and logins of different users rarely wait for each other. A login is remembered as soon as it is handed over for
+ * writing, even if the write fails later on.
+ */
+final class RecentLastLogins {
+
+    private static final int SEGMENTS = 16;
+
+    private final Duration granularity;
+    private final Segment[] segments;
+
+    RecentLastLogins(Duration granularity, int maxEntries) {
+        this(granularity, maxEntries, SEGMENTS);
+    }
+
+    RecentLastLogins(Duration granularity, int maxEntries, int segmentCount) {
+        this.granularity = granularity;
+        int maxEntriesPerSegment = Math.max(1, (maxEntries + segmentCount - 1) / segmentCount);
+        segments = new Segment[segmentCount];
+        Arrays.setAll(segments, i -> new Segment(maxEntriesPerSegment));
+    }
+
+    /**
+     * @return whether the login has to be written, {@code false} if a login of the user within the granularity has
+     * been written already
+     */
+    boolean shouldWrite(String realmId, String userId, Instant time) {
+        UserKey key = new UserKey(realmId, userId);
+        Segment segment = segments[Math.floorMod(key.hashCode(), segments.length)];
+        synchronized (segment) {
+            Instant last = segment.get(key);
+            if (last != null && time.isBefore(last.plus(granularity))) {
+                return false;
+            }
+            // moves the user to the end, the segment is ordered by the time of the last write
+            segment.remove(key);
+            segment.put(key, time);
+            return true;
+        }
+    }
+
+    int size() {
+        int size = 0;
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                size += segment.size();
+            }
+        }
+        return size;
+    }
+
+    private static final class Segment extends LinkedHashMap<UserKey, Instant> {
+
+        private final int maxEntries;
+
+        Segment(int maxEntries) {
+            this.maxEntries = maxEntries;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<UserKey, Instant> eldest) {
+            return size() > maxEntries;
+        }
+    }
+}
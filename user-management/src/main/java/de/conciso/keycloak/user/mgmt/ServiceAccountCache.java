@@ -0,0 +1,122 @@
+package de.conciso.keycloak.user.mgmt;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * Node-local cache of the service accounts of clients by realm and client id, so that client logins can be recorded
+ * without looking up the client and its service account. Clients without a service account are cached as well,
+ * unknown clients are not. Entries expire after the configured time to live. Once a realm holds the maximum number of
+ * clients, expired ones are evicted, and if all of them are still valid the realm is cleared.
+ * <p>
+ * Entries are removed when their client or realm changes on this or another node, which includes enabling and
+ * disabling the service account. To not cache a service account that was looked up while its client changed, the
+ * result of a lookup is dropped if any invalidation happened in the meantime. Local changes are reported before they
+ * are committed, so they are invalidated once more after the commit, the time to live bounds what is missed anyway.
+ */
+final class ServiceAccountCache {
+
+    /**
+     * @param userId the id of the service account user, {@code null} if the client has none
+     */
+    record ServiceAccount(String clientUuid, String userId) {
+    }
+
+    private record Entry(ServiceAccount serviceAccount, Instant expiresAt) {
+    }
+
+    private final int maxClientsPerRealm;
+    private final Duration timeToLive;
+    private final ConcurrentMap<String, ConcurrentMap<String, Entry>> realms = new ConcurrentHashMap<>();
+    private final AtomicLong generation = new AtomicLong();
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    ServiceAccountCache(int maxClientsPerRealm, Duration timeToLive) {
+        this.maxClientsPerRealm = maxClientsPerRealm;
+        this.timeToLive = timeToLive;
+    }
+
+    /**
+     * @param time   the time of the login
+     * @param lookup looks the client up if it is not cached, returning {@code null} if it does not exist
+     * @return the id of the service account user, {@code null} if the client does not exist or has none
+     */
+    String getUserId(String realmId, String clientId, Instant time, Supplier<ServiceAccount> lookup) {
+        ConcurrentMap<String, Entry> clients = realms.get(realmId);
+        Entry cached = clients != null ? clients.get(clientId) : null;
+        if (cached != null && time.isBefore(cached.expiresAt())) {
+            hits.increment();
+            return cached.serviceAccount().userId();
+        }
+        misses.increment();
+        long lookupGeneration = generation.get();
+        ServiceAccount serviceAccount = lookup.get();
+        if (serviceAccount == null) {
+            return null;
+        }
+        if (lookupGeneration == generation.get()) {
+            Entry entry = new Entry(serviceAccount, time.plus(timeToLive));
+            clients = realms.computeIfAbsent(realmId, id -> new ConcurrentHashMap<>());
+            clients.put(clientId, entry);
+            // an invalidation may have missed the entry while it was put
+            if (lookupGeneration != generation.get()) {
+                clients.remove(clientId, entry);
+            } else if (clients.size() > maxClientsPerRealm) {
+                evict(clients, time);
+            }
+        }
+        return serviceAccount.userId();
+    }
+
+    private void evict(ConcurrentMap<String, Entry> clients, Instant now) {
+        clients.values().removeIf(entry -> !now.isBefore(entry.expiresAt()));
+        if (clients.size() > maxClientsPerRealm) {
+            clients.clear();
+        }
+    }
+
+    void invalidateClient(String realmId, String clientUuid) {
+        generation.incrementAndGet();
+        ConcurrentMap<String, Entry> clients = realms.get(realmId);
+        if (clients != null) {
+            clients.values().removeIf(entry -> entry.serviceAccount().clientUuid().equals(clientUuid));
+        }
+    }
+
+    void invalidateRealm(String realmId) {
+        generation.incrementAndGet();
+        realms.remove(realmId);
+    }
+
+    /**
+     * Removes the realm or client with the given id, for invalidation messages that do not tell which one it is.
+     */
+    void invalidate(String id) {
+        generation.incrementAndGet();
+        realms.remove(id);
+        realms.values().forEach(clients -> clients.values()
+            .removeIf(entry -> entry.serviceAccount().clientUuid().equals(id)));
+    }
+
+    void clear() {
+        generation.incrementAndGet();
+        realms.clear();
+    }
+
+    Map<String, String> getStats() {
+        Map<String, String> stats = new LinkedHashMap<>();
+        stats.put("serviceAccountCache.clients",
+            String.valueOf(realms.values().stream().mapToInt(Map::size).sum()));
+        stats.put("serviceAccountCache.hits", String.valueOf(hits.sum()));
+        stats.put("serviceAccountCache.misses", String.valueOf(misses.sum()));
+        return stats;
+    }
+}
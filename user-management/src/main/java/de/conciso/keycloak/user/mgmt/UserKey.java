@@ -0,0 +1,7 @@
+package de.conciso.keycloak.user.mgmt;
+
+/**
+ * Identifies a user across realms on this node.
+ */
+record UserKey(String realmId, String userId) {
+}
@@ -2,65 +2,146 @@ package de.conciso.keycloak.user.mgmt;
 
 import org.keycloak.events.Event;
 import org.keycloak.events.EventListenerProvider;
+import org.keycloak.events.EventType;
 import org.keycloak.events.admin.AdminEvent;
 import org.keycloak.models.*;
 import org.keycloak.models.light.LightweightUserAdapter;
 
 import java.time.Clock;
-import java.time.OffsetDateTime;
-import java.time.format.DateTimeFormatter;
+import java.time.Instant;
 
 public final class UserLastLoginEventListener implements EventListenerProvider {
 
-    private static final String LAST_SUCCESSFUL_LOGIN_ATTR_KEY = "lastSuccessfulLoginAt";
     private final KeycloakSession keycloakSession;
     private final Clock clock;
+    private final LastLoginStore store;
+    // null if last logins are written within the login transaction
+    private final LastLoginWriteBehind writeBehind;
+    // null if every login is written
+    private final RecentLastLogins recentLogins;
+    // null if events are handled on the login thread
+    private final LastLoginQueue queue;
+    // null if service accounts are looked up on each client login
+    private final ServiceAccountCache serviceAccounts;
 
     UserLastLoginEventListener(KeycloakSession keycloakSession) {
-        this(keycloakSession, Clock.systemUTC());
+        this(keycloakSession, Clock.systemUTC(), LastLoginStore.ATTRIBUTE, null, null, null, null);
     }
 
     UserLastLoginEventListener(KeycloakSession keycloakSession, Clock clock) {
+        this(keycloakSession, clock, LastLoginStore.ATTRIBUTE, null, null, null, null);
+    }
+
+    UserLastLoginEventListener(KeycloakSession keycloakSession, Clock clock, LastLoginStore store,
+                               LastLoginWriteBehind writeBehind, RecentLastLogins recentLogins,
+                               LastLoginQueue queue, ServiceAccountCache serviceAccounts) {
         this.keycloakSession = keycloakSession;
         this.clock = clock;
+        this.store = store;
+        this.writeBehind = writeBehind;
+        this.recentLogins = recentLogins;
+        this.queue = queue;
+        this.serviceAccounts = serviceAccounts;
     }
 
     @Override
     public void onEvent(Event event) {
-        final String realmId = event.getRealmId();
-        final RealmModel realm = keycloakSession.realms().getRealm(realmId);
+        if (event.getType() != EventType.LOGIN && event.getType() != EventType.CLIENT_LOGIN) {
+            return;
+        }
+        LastLoginQueue.Job job = new LastLoginQueue.Job(event.getType(), event.getRealmId(), event.getUserId(),
+            event.getClientId(), clock.instant());
+        if (queue != null) {
+            queue.add(job);
+        } else {
+            handle(job);
+        }
+    }
 
-        final String time = OffsetDateTime.now(clock).format(DateTimeFormatter.ISO_DATE_TIME);
-        switch (event.getType()) {
-            case LOGIN -> handleUserLogin(event, realm, time);
-            case CLIENT_LOGIN -> handleClientLoginWithServiceAccount(event, realm, time);
+    /**
+     * Records a login event, on the login thread or by a worker of the queue within the transaction of this
+     * listener's session.
+     */
+    void handle(LastLoginQueue.Job job) {
+        final RealmModel realm = keycloakSession.realms().getRealm(job.realmId());
+        if (realm == null) {
+            return;
+        }
+        switch (job.type()) {
+            case LOGIN -> handleUserLogin(job.userId(), realm, job.time());
+            case CLIENT_LOGIN -> handleClientLoginWithServiceAccount(job.clientId(), realm, job.time());
         }
     }
 
-    private void handleClientLoginWithServiceAccount(Event event, RealmModel realm, String time) {
-        final String clientId = event.getClientId();
+    private void handleClientLoginWithServiceAccount(String clientId, RealmModel realm, Instant time) {
+        if (serviceAccounts != null) {
+            String userId = serviceAccounts.getUserId(realm.getId(), clientId, time,
+                () -> findServiceAccount(realm, clientId));
+            if (userId != null) {
+                record(realm, new LastLogin(realm.getId(), userId, time), null);
+            }
+            return;
+        }
         final ClientModel client = keycloakSession.clients().getClientByClientId(realm, clientId);
         if (client.isServiceAccountsEnabled()) {
             UserModel serviceAccount = keycloakSession.users().getServiceAccount(client);
-            serviceAccount.setSingleAttribute(LAST_SUCCESSFUL_LOGIN_ATTR_KEY, time);
+            record(realm, new LastLogin(realm.getId(), serviceAccount.getId(), time), serviceAccount);
         }
     }
 
-    private void handleUserLogin(Event event, RealmModel realm, String time) {
-        final String userId = event.getUserId();
+    private ServiceAccountCache.ServiceAccount findServiceAccount(RealmModel realm, String clientId) {
+        final ClientModel client = keycloakSession.clients().getClientByClientId(realm, clientId);
+        if (client == null) {
+            return null;
+        }
+        UserModel serviceAccount = client.isServiceAccountsEnabled()
+            ? keycloakSession.users().getServiceAccount(client) : null;
+        return new ServiceAccountCache.ServiceAccount(client.getId(),
+            serviceAccount != null ? serviceAccount.getId() : null);
+    }
 
-        UserModel user = null;
-        if (LightweightUserAdapter.isLightweightUser(userId)) {
-            UserSessionModel userSession = keycloakSession.sessions().getUserSession(realm, LightweightUserAdapter.getLightweightUserId(userId));
-            if (userSession != null) {
-                user = userSession.getUser();
-            }
+    private void handleUserLogin(String userId, RealmModel realm, Instant time) {
+        if (!LightweightUserAdapter.isLightweightUser(userId)) {
+            record(realm, new LastLogin(realm.getId(), userId, time), null);
+            return;
+        }
+        if (!shouldWrite(realm, userId, time)) {
+            return;
+        }
+
+        // lightweight users only live in their user session, which is cheap to update right away
+        UserSessionModel userSession = keycloakSession.sessions().getUserSession(realm, LightweightUserAdapter.getLightweightUserId(userId));
+        if (userSession != null) {
+            userSession.getUser().setSingleAttribute(LastLoginStore.LAST_SUCCESSFUL_LOGIN_ATTR_KEY,
+                LastLoginStore.format(time));
+        }
+    }
+
+    /**
+     * @param user the user of the login if it has been loaded already
+     */
+    private void record(RealmModel realm, LastLogin login, UserModel user) {
+        if (!shouldWrite(realm, login.userId(), login.time())) {
+            return;
+        }
+        if (writeBehind != null) {
+            writeBehind.add(login);
         } else {
-            user = keycloakSession.users().getUserById(realm, userId);
+            store.write(keycloakSession, realm, login, user);
         }
+    }
+
+    private boolean shouldWrite(RealmModel realm, String userId, Instant time) {
+        return recentLogins == null || recentLogins.shouldWrite(realm.getId(), userId, time);
+    }
 
-        if (user != null) {
-            user.setSingleAttribute(LAST_SUCCESSFUL_LOGIN_ATTR_KEY, time);
+    /**
+     * Persists a login collected by the write-behind within the transaction of this listener's session.
+     */
+    void write(LastLogin login) {
+        RealmModel realm = keycloakSession.realms().getRealm(login.realmId());
+        if (realm != null) {
+            store.write(keycloakSession, realm, login, null);
         }
     }
 
@@ -1,35 +1,364 @@
 package de.conciso.keycloak.user.mgmt;
 
+import io.micrometer.core.instrument.Metrics;
+import org.infinispan.Cache;
+import org.jboss.logging.Logger;
 import org.keycloak.Config;
+import org.keycloak.cluster.ClusterProvider;
+import org.keycloak.connections.infinispan.InfinispanConnectionProvider;
 import org.keycloak.events.EventListenerProvider;
 import org.keycloak.events.EventListenerProviderFactory;
+import org.keycloak.models.AbstractKeycloakTransaction;
+import org.keycloak.models.ClientModel;
 import org.keycloak.models.KeycloakSession;
 import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.KeycloakTransactionManager;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.UserModel;
+import org.keycloak.models.cache.infinispan.InfinispanCacheRealmProviderFactory;
+import org.keycloak.models.cache.infinispan.events.InvalidationEvent;
+import org.keycloak.models.utils.KeycloakModelUtils;
+import org.keycloak.provider.ProviderConfigProperty;
+import org.keycloak.provider.ProviderConfigurationBuilder;
+import org.keycloak.provider.ServerInfoAwareProviderFactory;
 
-public final class UserLastLoginEventListenerFactory implements EventListenerProviderFactory {
+import java.time.Clock;
+import java.time.Duration;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+public final class UserLastLoginEventListenerFactory implements EventListenerProviderFactory,
+    ServerInfoAwareProviderFactory {
+
+    private static final Logger log = Logger.getLogger(UserLastLoginEventListenerFactory.class);
+    static final String WRITE_BEHIND_INTERVAL = "writeBehindInterval";
+    static final String WRITE_BEHIND_MAX_BATCH_SIZE = "writeBehindMaxBatchSize";
+    static final String GRANULARITY = "granularity";
+    static final String GRANULARITY_MAX_USERS = "granularityMaxUsers";
+    static final String STORAGE = "storage";
+    static final String STORAGE_ATTRIBUTE_MIRROR = "storageAttributeMirror";
+    static final String ASYNC_WORKERS = "asyncWorkers";
+    static final String ASYNC_MAX_QUEUED = "asyncMaxQueued";
+    static final String ASYNC_OVERFLOW = "asyncOverflow";
+    static final String ASYNC_MAX_BLOCK = "asyncMaxBlock";
+    static final String SERVICE_ACCOUNT_CACHE_MAX_CLIENTS = "serviceAccountCacheMaxClients";
+    static final String SERVICE_ACCOUNT_CACHE_TIME_TO_LIVE = "serviceAccountCacheTimeToLive";
+    static final String CLUSTER = "cluster";
+
+    private int writeBehindInterval;
+    private int writeBehindMaxBatchSize;
+    private boolean clusterEnabled;
+    private int asyncWorkers;
+    private int asyncMaxQueued;
+    private LastLoginQueue.Overflow asyncOverflow;
+    private int asyncMaxBlock;
+    private LastLoginStore store;
+    // null if last logins are written within the login transaction
+    private LastLoginWriteBehind writeBehind;
+    // null if each node writes the last logins of its own logins
+    private ClusterLastLogins cluster;
+    // null if every login is written
+    private RecentLastLogins recentLogins;
+    // null if events are handled on the login thread
+    private LastLoginQueue queue;
+    // null if service accounts are looked up on each client login
+    private ServiceAccountCache serviceAccounts;
+    private volatile boolean clusterListenersRegistered;
 
     @Override
     public EventListenerProvider create(KeycloakSession keycloakSession) {
-        return new UserLastLoginEventListener(keycloakSession);
+        if (serviceAccounts != null && !clusterListenersRegistered) {
+            registerClusterListeners(keycloakSession);
+        }
+        return new UserLastLoginEventListener(keycloakSession, Clock.systemUTC(), store, writeBehind,
+            recentLogins, queue, serviceAccounts);
     }
 
     @Override
     public void init(Config.Scope scope) {
-
+        writeBehindInterval = scope.getInt(WRITE_BEHIND_INTERVAL, 0);
+        writeBehindMaxBatchSize = scope.getInt(WRITE_BEHIND_MAX_BATCH_SIZE, 500);
+        clusterEnabled = scope.getBoolean(CLUSTER, false);
+        if (clusterEnabled && writeBehindInterval <= 0) {
+            throw new IllegalArgumentException("Aggregating last logins in the cluster requires the write-behind, "
+                + "configure " + WRITE_BEHIND_INTERVAL);
+        }
+        asyncWorkers = scope.getInt(ASYNC_WORKERS, 0);
+        asyncMaxQueued = scope.getInt(ASYNC_MAX_QUEUED, 10000);
+        asyncOverflow = LastLoginQueue.Overflow.valueOf(scope.get(ASYNC_OVERFLOW, "drop").toUpperCase(Locale.ROOT));
+        asyncMaxBlock = scope.getInt(ASYNC_MAX_BLOCK, 1000);
+        String storage = scope.get(STORAGE, "attribute");
+        switch (storage) {
+            case "attribute" -> store = LastLoginStore.ATTRIBUTE;
+            case "entity" -> {
+                boolean attributeMirror = scope.getBoolean(STORAGE_ATTRIBUTE_MIRROR, false);
+                store = LastLoginStore.entity(attributeMirror);
+                log.infof("Storing last logins in their own table%s",
+                    attributeMirror ? ", mirrored to the user attribute" : "");
+            }
+            default -> throw new IllegalArgumentException("Unknown last login storage " + storage
+                + ", expected attribute or entity");
+        }
+        int serviceAccountCacheMaxClients = scope.getInt(SERVICE_ACCOUNT_CACHE_MAX_CLIENTS, 0);
+        if (serviceAccountCacheMaxClients > 0) {
+            int timeToLive = scope.getInt(SERVICE_ACCOUNT_CACHE_TIME_TO_LIVE, 60);
+            serviceAccounts = new ServiceAccountCache(serviceAccountCacheMaxClients, Duration.ofSeconds(timeToLive));
+            log.infof("Caching the service accounts of up to %d clients per realm for %d seconds",
+                serviceAccountCacheMaxClients, timeToLive);
+        }
+        int granularity = scope.getInt(GRANULARITY, 0);
+        if (granularity > 0) {
+            recentLogins = new RecentLastLogins(Duration.ofSeconds(granularity),
+                scope.getInt(GRANULARITY_MAX_USERS, 100000));
+            log.infof("Writing the last login of each user at most every %d seconds per node", granularity);
+        }
     }
 
     @Override
     public void postInit(KeycloakSessionFactory keycloakSessionFactory) {
+        if (store.isEntity()) {
+            // the table has no foreign key to the users, so their rows are removed along with them here
+            keycloakSessionFactory.register(event -> {
+                if (event instanceof UserModel.UserRemovedEvent userRemoved) {
+                    LastLoginStore.removeUser(userRemoved.getKeycloakSession(), userRemoved.getUser().getId());
+                } else if (event instanceof RealmModel.RealmRemovedEvent realmRemoved) {
+                    LastLoginStore.removeRealm(realmRemoved.getKeycloakSession(), realmRemoved.getRealm().getId());
+                }
+            });
+        }
+        if (serviceAccounts != null) {
+            keycloakSessionFactory.register(event -> {
+                if (event instanceof ClientModel.ClientUpdatedEvent clientUpdated) {
+                    invalidateClient(clientUpdated.getKeycloakSession(), clientUpdated.getUpdatedClient());
+                } else if (event instanceof ClientModel.ClientRemovedEvent clientRemoved) {
+                    invalidateClient(clientRemoved.getKeycloakSession(), clientRemoved.getClient());
+                } else if (event instanceof RealmModel.RealmRemovedEvent realmRemoved) {
+                    serviceAccounts.invalidateRealm(realmRemoved.getRealm().getId());
+                }
+            });
+        }
+        if (writeBehindInterval > 0) {
+            startWriteBehind(keycloakSessionFactory);
+        }
+        if (asyncWorkers > 0) {
+            startQueue(keycloakSessionFactory);
+        }
+    }
+
+    private void startWriteBehind(KeycloakSessionFactory keycloakSessionFactory) {
+        LastLoginWriteBehind.BatchWriter persister = batch -> KeycloakModelUtils.runJobInTransaction(
+            keycloakSessionFactory, session -> {
+                UserLastLoginEventListener listener = new UserLastLoginEventListener(session, Clock.systemUTC(), store,
+                    null, null, null, null);
+                batch.forEach(listener::write);
+            });
+        if (clusterEnabled) {
+            cluster = new ClusterLastLogins(() -> lookUpCache(keycloakSessionFactory), persister,
+                writeBehindMaxBatchSize);
+            cluster.start(Duration.ofSeconds(writeBehindInterval));
+            log.infof("Aggregating last logins in the cache %s, written by the owner of each user every %d seconds",
+                ClusterLastLogins.CACHE_NAME, writeBehindInterval);
+        }
+        writeBehind = new LastLoginWriteBehind(cluster != null ? cluster::merge : persister, writeBehindMaxBatchSize);
+        writeBehind.start(Duration.ofSeconds(writeBehindInterval));
+        log.infof("Writing last logins every %d seconds in batches of up to %d users", writeBehindInterval,
+            writeBehindMaxBatchSize);
+    }
+
+    private static Cache<String, String> lookUpCache(KeycloakSessionFactory keycloakSessionFactory) {
+        try (KeycloakSession session = keycloakSessionFactory.create()) {
+            Cache<Object, Object> workCache = session.getProvider(InfinispanConnectionProvider.class)
+                .getCache(InfinispanConnectionProvider.WORK_CACHE_NAME);
+            return ClusterLastLogins.getOrDefineCache(workCache.getCacheManager());
+        }
+    }
+
+    private void startQueue(KeycloakSessionFactory keycloakSessionFactory) {
+        queue = new LastLoginQueue(job -> KeycloakModelUtils.runJobInTransaction(keycloakSessionFactory,
+            session -> new UserLastLoginEventListener(session, Clock.systemUTC(), store, writeBehind, recentLogins,
+                null, serviceAccounts).handle(job)), asyncMaxQueued, asyncOverflow, Duration.ofMillis(asyncMaxBlock),
+            Metrics.globalRegistry);
+        queue.start(asyncWorkers);
+        log.infof("Recording logins on %d worker threads, up to %d queued, %s on overflow", asyncWorkers,
+            asyncMaxQueued, asyncOverflow);
+    }
 
+    /**
+     * Invalidates the client right away and once more after the commit, since a lookup in between still reads the
+     * client as it was.
+     */
+    private void invalidateClient(KeycloakSession keycloakSession, ClientModel client) {
+        String realmId = client.getRealm().getId();
+        String clientUuid = client.getId();
+        serviceAccounts.invalidateClient(realmId, clientUuid);
+        KeycloakTransactionManager transaction = keycloakSession.getTransactionManager();
+        if (transaction.isActive()) {
+            transaction.enlistAfterCompletion(new AbstractKeycloakTransaction() {
+                @Override
+                protected void commitImpl() {
+                    serviceAccounts.invalidateClient(realmId, clientUuid);
+                }
+
+                @Override
+                protected void rollbackImpl() {
+
+                }
+            });
+        }
+    }
+
+    /**
+     * Clients changed on other nodes are reported by the invalidation messages of the Keycloak realm cache. The cluster
+     * provider is not available during {@link #postInit}, so this happens on first use like in the realm cache itself.
+     */
+    private synchronized void registerClusterListeners(KeycloakSession keycloakSession) {
+        if (clusterListenersRegistered) {
+            return;
+        }
+        ClusterProvider cluster = keycloakSession.getProvider(ClusterProvider.class);
+        if (cluster != null) {
+            cluster.registerListener(InfinispanCacheRealmProviderFactory.REALM_INVALIDATION_EVENTS, event -> {
+                if (event instanceof InvalidationEvent invalidation) {
+                    serviceAccounts.invalidate(invalidation.getId());
+                }
+            });
+            cluster.registerListener(InfinispanCacheRealmProviderFactory.REALM_CLEAR_CACHE_EVENTS,
+                event -> serviceAccounts.clear());
+        }
+        clusterListenersRegistered = true;
     }
 
     @Override
     public void close() {
-
+        // the workers may still hand logins over to the write-behind
+        if (queue != null) {
+            queue.close();
+        }
+        if (writeBehind != null) {
+            writeBehind.close();
+        }
+        if (cluster != null) {
+            cluster.close();
+        }
     }
 
     @Override
     public String getId() {
         return "user-last-login";
     }
+
+    @Override
+    public Map<String, String> getOperationalInfo() {
+        Map<String, String> info = new LinkedHashMap<>();
+        if (queue != null) {
+            info.putAll(queue.getStats());
+        }
+        if (writeBehind != null) {
+            info.put("writeBehind.pending", String.valueOf(writeBehind.getPendingCount()));
+        }
+        if (cluster != null) {
+            info.put("cluster.localEntries", String.valueOf(cluster.getPendingCount()));
+        }
+        if (recentLogins != null) {
+            info.put("granularity.users", String.valueOf(recentLogins.size()));
+        }
+        if (serviceAccounts != null) {
+            info.putAll(serviceAccounts.getStats());
+        }
+        return info;
+    }
+
+    @Override
+    public List<ProviderConfigProperty> getConfigMetadata() {
+        return ProviderConfigurationBuilder.create()
+            .property()
+            .name(WRITE_BEHIND_INTERVAL)
+            .type(ProviderConfigProperty.INTEGER_TYPE)
+            .helpText("Seconds between background writes of the last logins collected on each node, 0 writes them "
+                + "within the login transaction")
+            .defaultValue(0)
+            .add()
+            .property()
+            .name(WRITE_BEHIND_MAX_BATCH_SIZE)
+            .type(ProviderConfigProperty.INTEGER_TYPE)
+            .helpText("Number of users whose last logins are written in one transaction, also written as soon as "
+                + "that many are pending")
+            .defaultValue(500)
+            .add()
+            .property()
+            .name(GRANULARITY)
+            .type(ProviderConfigProperty.INTEGER_TYPE)
+            .helpText("Seconds within which further logins of a user are not written again, 0 writes every login")
+            .defaultValue(0)
+            .add()
+            .property()
+            .name(GRANULARITY_MAX_USERS)
+            .type(ProviderConfigProperty.INTEGER_TYPE)
+            .helpText("Number of users whose last written login is remembered on each node for the granularity")
+            .defaultValue(100000)
+            .add()
+            .property()
+            .name(STORAGE)
+            .type(ProviderConfigProperty.LIST_TYPE)
+            .options("attribute", "entity")
+            .helpText("Where last logins are stored, the user attribute or a table of their own with login counts "
+                + "and an index on realm and time")
+            .defaultValue("attribute")
+            .add()
+            .property()
+            .name(STORAGE_ATTRIBUTE_MIRROR)
+            .type(ProviderConfigProperty.BOOLEAN_TYPE)
+            .helpText("Whether the entity storage writes the user attribute as well")
+            .defaultValue(false)
+            .add()
+            .property()
+            .name(ASYNC_WORKERS)
+            .type(ProviderConfigProperty.INTEGER_TYPE)
+            .helpText("Number of threads recording logins after the login, 0 records them on the login thread")
+            .defaultValue(0)
+            .add()
+            .property()
+            .name(ASYNC_MAX_QUEUED)
+            .type(ProviderConfigProperty.INTEGER_TYPE)
+            .helpText("Number of login events waiting for the worker threads on each node")
+            .defaultValue(10000)
+            .add()
+            .property()
+            .name(ASYNC_OVERFLOW)
+            .type(ProviderConfigProperty.LIST_TYPE)
+            .options("drop", "block", "coalesce")
+            .helpText("What happens to login events when the queue is full: dropped, dropped after waiting for a "
+                + "free slot, or merged into a queued event of the same user and dropped otherwise")
+            .defaultValue("drop")
+            .add()
+            .property()
+            .name(ASYNC_MAX_BLOCK)
+            .type(ProviderConfigProperty.INTEGER_TYPE)
+            .helpText("Milliseconds a login waits for a free slot with the block policy")
+            .defaultValue(1000)
+            .add()
+            .property()
+            .name(SERVICE_ACCOUNT_CACHE_MAX_CLIENTS)
+            .type(ProviderConfigProperty.INTEGER_TYPE)
+            .helpText("Number of clients per realm whose service account is cached on each node, 0 looks it up on "
+                + "each client login")
+            .defaultValue(0)
+            .add()
+            .property()
+            .name(SERVICE_ACCOUNT_CACHE_TIME_TO_LIVE)
+            .type(ProviderConfigProperty.INTEGER_TYPE)
+            .helpText("Seconds a cached service account is used before it is looked up again")
+            .defaultValue(60)
+            .add()
+            .property()
+            .name(CLUSTER)
+            .type(ProviderConfigProperty.BOOLEAN_TYPE)
+            .helpText("Whether the write-behind of all nodes collects the last logins in a distributed cache, from "
+                + "which the owner of each user writes them")
+            .defaultValue(false)
+            .add()
+            .build();
+    }
 }
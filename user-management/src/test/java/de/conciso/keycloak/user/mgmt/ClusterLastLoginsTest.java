@@ -0,0 +1,120 @@
+package de.conciso.keycloak.user.mgmt;
+
+import org.infinispan.Cache;
+import org.infinispan.configuration.global.GlobalConfigurationBuilder;
+import org.infinispan.manager.DefaultCacheManager;
+import org.infinispan.manager.EmbeddedCacheManager;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Nested;
+import org.junit.jupiter.api.Test;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.stream.IntStream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class ClusterLastLoginsTest {
+
+  static final Instant FIRST_LOGIN = Instant.parse("2026-10-01T08:00:00Z");
+  static final Instant SECOND_LOGIN = Instant.parse("2026-10-01T08:00:05Z");
+
+  List<EmbeddedCacheManager> cacheManagers = new ArrayList<>();
+
+  @AfterEach
+  void stopCacheManagers() {
+    cacheManagers.forEach(EmbeddedCacheManager::stop);
+  }
+
+  ClusterLastLogins node(EmbeddedCacheManager cacheManager, List<List<LastLogin>> written) {
+    cacheManagers.add(cacheManager);
+    Cache<String, String> cache = ClusterLastLogins.getOrDefineCache(cacheManager);
+    return new ClusterLastLogins(() -> cache, written::add, 10);
+  }
+
+  @Nested
+  class GivenASingleNode {
+
+    List<List<LastLogin>> written = new ArrayList<>();
+    ClusterLastLogins cut = node(new DefaultCacheManager(), written);
+
+    @Test
+    void thenMergedLoginsAreWrittenOnce() {
+      cut.merge(List.of(new LastLogin("realm", "user", SECOND_LOGIN)));
+      cut.merge(List.of(new LastLogin("realm", "user", FIRST_LOGIN)));
+
+      cut.flush();
+      cut.flush();
+
+      assertThat(written).containsExactly(List.of(new LastLogin("realm", "user", SECOND_LOGIN, 2)));
+      assertThat(cut.getPendingCount()).isZero();
+    }
+  }
+
+  @Nested
+  class GivenAFailingWrite {
+
+    boolean failing = true;
+
+    List<List<LastLogin>> written = new ArrayList<>();
+    ClusterLastLogins cut = new ClusterLastLogins(() -> ClusterLastLogins.getOrDefineCache(cacheManager()),
+        batch -> {
+          if (failing) {
+            throw new IllegalStateException("database down");
+          }
+          written.add(batch);
+        }, 10);
+
+    EmbeddedCacheManager cacheManager() {
+      EmbeddedCacheManager cacheManager = new DefaultCacheManager();
+      cacheManagers.add(cacheManager);
+      return cacheManager;
+    }
+
+    @Test
+    void thenTheLoginsAreWrittenWithTheNextFlush() {
+      cut.merge(List.of(new LastLogin("realm", "user", FIRST_LOGIN)));
+      cut.flush();
+      failing = false;
+
+      cut.flush();
+
+      assertThat(written).containsExactly(List.of(new LastLogin("realm", "user", FIRST_LOGIN, 1)));
+    }
+  }
+
+  @Nested
+  class GivenTwoNodes {
+
+    List<List<LastLogin>> written = new CopyOnWriteArrayList<>();
+    ClusterLastLogins first = node(clusteredCacheManager("first"), written);
+    ClusterLastLogins second = node(clusteredCacheManager("second"), written);
+
+    EmbeddedCacheManager clusteredCacheManager(String name) {
+      GlobalConfigurationBuilder global = GlobalConfigurationBuilder.defaultClusteredBuilder();
+      global.transport()
+          .clusterName("user-last-login-test")
+          .nodeName(name)
+          .addProperty("configurationFile", "cluster-test-jgroups.xml");
+      return new DefaultCacheManager(global.build());
+    }
+
+    @Test
+    void thenEachUserIsWrittenOnceByItsOwner() {
+      List<String> users = IntStream.range(0, 20).mapToObj(i -> "user-" + i).toList();
+      first.merge(users.stream().map(user -> new LastLogin("realm", user, FIRST_LOGIN)).toList());
+      second.merge(users.stream().map(user -> new LastLogin("realm", user, SECOND_LOGIN)).toList());
+
+      first.flush();
+      second.flush();
+
+      List<LastLogin> logins = written.stream().flatMap(List::stream).toList();
+      assertThat(logins).containsExactlyInAnyOrderElementsOf(
+          users.stream().map(user -> new LastLogin("realm", user, SECOND_LOGIN, 2)).toList());
+      assertThat(written).hasSizeGreaterThanOrEqualTo(2);
+      assertThat(first.getPendingCount() + second.getPendingCount()).isZero();
+    }
+  }
+}
@@ -0,0 +1,104 @@
+package de.conciso.keycloak.user.mgmt;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Nested;
+import org.junit.jupiter.api.Test;
+import org.keycloak.events.EventType;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class LastLoginQueueTest {
+
+  static final Instant FIRST_LOGIN = Instant.parse("2026-10-01T08:00:00Z");
+  static final Instant SECOND_LOGIN = Instant.parse("2026-10-01T08:00:05Z");
+
+  List<LastLoginQueue.Job> handled = new CopyOnWriteArrayList<>();
+  SimpleMeterRegistry registry = new SimpleMeterRegistry();
+
+  static LastLoginQueue.Job login(String userId, Instant time) {
+    return new LastLoginQueue.Job(EventType.LOGIN, "realm", userId, "client", time);
+  }
+
+  LastLoginQueue queue(LastLoginQueue.Overflow overflow) {
+    return new LastLoginQueue(handled::add, 2, overflow, Duration.ofMillis(10), registry);
+  }
+
+  @Nested
+  class GivenAFullQueueThatDrops {
+
+    LastLoginQueue cut = queue(LastLoginQueue.Overflow.DROP);
+
+    @Test
+    void thenFurtherEventsAreDroppedAndCounted() {
+      cut.add(login("user-1", FIRST_LOGIN));
+      cut.add(login("user-2", FIRST_LOGIN));
+      cut.add(login("user-3", FIRST_LOGIN));
+
+      assertThat(cut.getDepth()).isEqualTo(2);
+      assertThat(cut.getStats()).containsEntry("async.dropped", "1");
+      assertThat(registry.get("keycloak.user_last_login.async.dropped").functionCounter().count()).isEqualTo(1);
+      assertThat(registry.get("keycloak.user_last_login.async.queue_depth").gauge().value()).isEqualTo(2);
+    }
+  }
+
+  @Nested
+  class GivenAFullQueueThatBlocks {
+
+    LastLoginQueue cut = queue(LastLoginQueue.Overflow.BLOCK);
+
+    @Test
+    void thenEventsAreDroppedAfterWaiting() {
+      cut.add(login("user-1", FIRST_LOGIN));
+      cut.add(login("user-2", FIRST_LOGIN));
+      cut.add(login("user-3", FIRST_LOGIN));
+
+      assertThat(cut.getStats()).containsEntry("async.dropped", "1");
+    }
+  }
+
+  @Nested
+  class GivenAFullQueueThatCoalesces {
+
+    LastLoginQueue cut = queue(LastLoginQueue.Overflow.COALESCE);
+
+    @Test
+    void thenEventsOfQueuedUsersAreMerged() {
+      cut.add(login("user-1", FIRST_LOGIN));
+      cut.add(login("user-2", FIRST_LOGIN));
+      cut.add(login("user-1", SECOND_LOGIN));
+      cut.add(login("user-3", FIRST_LOGIN));
+
+      cut.start(1);
+      cut.close();
+
+      assertThat(handled).containsExactlyInAnyOrder(login("user-1", SECOND_LOGIN), login("user-2", FIRST_LOGIN));
+      assertThat(cut.getStats())
+          .containsEntry("async.processed", "2")
+          .containsEntry("async.dropped", "1");
+    }
+  }
+
+  @Nested
+  class GivenAFailingHandler {
+
+    LastLoginQueue cut = new LastLoginQueue(job -> {
+      throw new IllegalStateException("database down");
+    }, 2, LastLoginQueue.Overflow.DROP, Duration.ZERO, registry);
+
+    @Test
+    void thenTheFailureIsCountedAndTheWorkerCarriesOn() {
+      cut.start(1);
+      cut.add(login("user-1", FIRST_LOGIN));
+      cut.add(login("user-2", FIRST_LOGIN));
+      cut.close();
+
+      assertThat(cut.getDepth()).isZero();
+      assertThat(cut.getStats()).containsEntry("async.failed", "2");
+    }
+  }
+}
@@ -0,0 +1,190 @@
+package de.conciso.keycloak.user.mgmt;
+
+import jakarta.persistence.EntityManager;
+import jakarta.persistence.Query;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Nested;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.keycloak.connections.jpa.JpaConnectionProvider;
+import org.keycloak.models.*;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+
+import java.time.Instant;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatCode;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.BDDMockito.given;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+@ExtendWith(MockitoExtension.class)
+class LastLoginStoreTest {
+
+  static final LastLogin LOGIN = new LastLogin("realm", "user", Instant.parse("2026-10-01T08:00:00Z"));
+
+  @Mock
+  KeycloakSession session;
+
+  @Mock
+  JpaConnectionProvider jpaConnectionProvider;
+
+  @Mock
+  EntityManager entityManager;
+
+  @Mock
+  Query query;
+
+  @Mock
+  RealmProvider realmProvider;
+
+  @Mock
+  UserProvider userProvider;
+
+  @Mock
+  RealmModel realm;
+
+  @Mock
+  UserModel user;
+
+  // failures of the next commits, the commit succeeds if there is none
+  Deque<RuntimeException> commitFailures = new ArrayDeque<>();
+  int transactions;
+
+  LastLoginStore.Transactions inTransaction = task -> {
+    transactions++;
+    task.run(session);
+    RuntimeException failure = commitFailures.poll();
+    if (failure != null) {
+      throw failure;
+    }
+  };
+
+  @BeforeEach
+  void setUp() {
+    given(session.getProvider(JpaConnectionProvider.class)).willReturn(jpaConnectionProvider);
+    given(jpaConnectionProvider.getEntityManager()).willReturn(entityManager);
+    given(entityManager.createNamedQuery(anyString())).willReturn(query);
+    given(query.setParameter(anyString(), any())).willReturn(query);
+  }
+
+  void givenTheUserExists() {
+    given(session.realms()).willReturn(realmProvider);
+    given(realmProvider.getRealm("realm")).willReturn(realm);
+    given(session.users()).willReturn(userProvider);
+    given(userProvider.getUserById(realm, "user")).willReturn(user);
+  }
+
+  @Nested
+  class GivenAUserWithARow {
+
+    @Test
+    void thenTheRowIsUpdated() {
+      given(query.executeUpdate()).willReturn(1);
+
+      LastLoginStore.writeEntities(inTransaction, List.of(LOGIN));
+
+      verify(entityManager).createNamedQuery("updateLastLogin");
+      verify(query).setParameter("lastLogin", LOGIN.time().toEpochMilli());
+      verify(query).setParameter("logins", 1L);
+      verify(entityManager, never()).persist(any());
+    }
+  }
+
+  @Nested
+  class GivenAUserWithoutRow {
+
+    @Test
+    void thenTheRowIsInserted() {
+      given(query.executeUpdate()).willReturn(0);
+      givenTheUserExists();
+
+      LastLoginStore.writeEntities(inTransaction, List.of(LOGIN));
+
+      ArgumentCaptor<LastLoginEntity> inserted = ArgumentCaptor.forClass(LastLoginEntity.class);
+      verify(entityManager).persist(inserted.capture());
+      assertThat(inserted.getValue().getUserId()).isEqualTo("user");
+      assertThat(inserted.getValue().getRealmId()).isEqualTo("realm");
+      assertThat(inserted.getValue().getLastLogin()).isEqualTo(LOGIN.time().toEpochMilli());
+      assertThat(inserted.getValue().getLoginCount()).isEqualTo(1);
+    }
+  }
+
+  @Nested
+  class GivenARemovedUser {
+
+    @Test
+    void thenNoRowIsInserted() {
+      given(query.executeUpdate()).willReturn(0);
+      given(session.realms()).willReturn(realmProvider);
+      given(realmProvider.getRealm("realm")).willReturn(realm);
+      given(session.users()).willReturn(userProvider);
+
+      LastLoginStore.writeEntities(inTransaction, List.of(LOGIN));
+
+      verify(entityManager, never()).persist(any());
+    }
+  }
+
+  @Nested
+  class GivenARowInsertedByAnotherLoginAtTheSameTime {
+
+    @Test
+    void thenTheRowIsUpdatedOnRetry() {
+      given(query.executeUpdate()).willReturn(0, 1);
+      givenTheUserExists();
+      commitFailures.add(new ModelDuplicateException("PK_CONCISO_USER_LAST_LOGIN"));
+
+      LastLoginStore.writeEntities(inTransaction, List.of(LOGIN));
+
+      assertThat(transactions).isEqualTo(2);
+      verify(query, times(2)).executeUpdate();
+      verify(entityManager, times(1)).persist(any());
+    }
+  }
+
+  @Nested
+  class GivenAWriteThatKeepsFailing {
+
+    @Test
+    void thenTheFailureIsOnlyLogged() {
+      given(query.executeUpdate()).willReturn(1);
+      commitFailures.add(new ModelException("database down"));
+      commitFailures.add(new ModelException("database down"));
+      commitFailures.add(new ModelException("database down"));
+
+      assertThatCode(() -> LastLoginStore.writeEntities(inTransaction, List.of(LOGIN))).doesNotThrowAnyException();
+      assertThat(transactions).isEqualTo(3);
+    }
+  }
+
+  @Nested
+  class GivenARemovedUserOrRealm {
+
+    @Test
+    void thenTheRowOfTheUserIsDeleted() {
+      LastLoginStore.removeUser(session, "user");
+
+      verify(entityManager).createNamedQuery("deleteLastLoginByUser");
+      verify(query).setParameter("userId", "user");
+      verify(query).executeUpdate();
+    }
+
+    @Test
+    void thenTheRowsOfTheRealmAreDeleted() {
+      LastLoginStore.removeRealm(session, "realm");
+
+      verify(entityManager).createNamedQuery("deleteLastLoginsByRealm");
+      verify(query).setParameter("realmId", "realm");
+      verify(query).executeUpdate();
+    }
+  }
+}
@@ -0,0 +1,81 @@
+package de.conciso.keycloak.user.mgmt;
+
+import org.junit.jupiter.api.Nested;
+import org.junit.jupiter.api.Test;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class LastLoginWriteBehindTest {
+
+  static final Instant FIRST_LOGIN = Instant.parse("2026-10-01T08:00:00Z");
+  static final Instant SECOND_LOGIN = Instant.parse("2026-10-01T08:00:05Z");
+
+  List<List<LastLogin>> batches = new ArrayList<>();
+
+  @Nested
+  class GivenSeveralLoginsOfTheSameUser {
+
+    LastLoginWriteBehind cut = new LastLoginWriteBehind(batches::add, 10);
+
+    @Test
+    void thenTheyAreWrittenOnceWithTheLatestTime() {
+      cut.add(new LastLogin("realm", "user", SECOND_LOGIN));
+      cut.add(new LastLogin("realm", "user", FIRST_LOGIN));
+      cut.add(new LastLogin("other-realm", "user", FIRST_LOGIN));
+
+      cut.flush();
+
+      assertThat(batches).hasSize(1);
+      assertThat(batches.get(0)).containsExactlyInAnyOrder(
+          new LastLogin("realm", "user", SECOND_LOGIN, 2),
+          new LastLogin("other-realm", "user", FIRST_LOGIN, 1));
+      assertThat(cut.getPendingCount()).isZero();
+    }
+  }
+
+  @Nested
+  class GivenMoreLoginsThanFitIntoOneBatch {
+
+    LastLoginWriteBehind cut = new LastLoginWriteBehind(batches::add, 2);
+
+    @Test
+    void thenTheyAreWrittenInSeveralBatches() {
+      for (int i = 0; i < 3; i++) {
+        cut.add(new LastLogin("realm", "user-" + i, FIRST_LOGIN));
+      }
+
+      cut.flush();
+
+      assertThat(batches).extracting(List::size).containsExactly(2, 1);
+    }
+  }
+
+  @Nested
+  class GivenAFailingWrite {
+
+    boolean failing = true;
+
+    LastLoginWriteBehind cut = new LastLoginWriteBehind(batch -> {
+      if (failing) {
+        throw new IllegalStateException("database down");
+      }
+      batches.add(batch);
+    }, 10);
+
+    @Test
+    void thenTheLoginsAreWrittenWithTheNextFlush() {
+      cut.add(new LastLogin("realm", "user", FIRST_LOGIN));
+      cut.flush();
+      cut.add(new LastLogin("realm", "user", SECOND_LOGIN));
+      failing = false;
+
+      cut.flush();
+
+      assertThat(batches).containsExactly(List.of(new LastLogin("realm", "user", SECOND_LOGIN, 2)));
+    }
+  }
+}
@@ -0,0 +1,40 @@
+package de.conciso.keycloak.user.mgmt;
+
+import org.junit.jupiter.api.Nested;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.time.Instant;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class RecentLastLoginsTest {
+
+  static final Instant LOGIN = Instant.parse("2026-10-01T08:00:00Z");
+
+  @Nested
+  class GivenAGranularityOfOneHour {
+
+    RecentLastLogins cut = new RecentLastLogins(Duration.ofHours(1), 2, 1);
+
+    @Test
+    void thenOnlyTheFirstLoginWithinTheHourIsWritten() {
+      assertThat(cut.shouldWrite("realm", "user", LOGIN)).isTrue();
+      assertThat(cut.shouldWrite("realm", "user", LOGIN.plusSeconds(3599))).isFalse();
+      assertThat(cut.shouldWrite("other-realm", "user", LOGIN.plusSeconds(3599))).isTrue();
+      assertThat(cut.shouldWrite("realm", "user", LOGIN.plusSeconds(3600))).isTrue();
+    }
+
+    @Test
+    void thenTheLeastRecentlyWrittenUserIsEvictedOnceFull() {
+      cut.shouldWrite("realm", "first", LOGIN);
+      cut.shouldWrite("realm", "second", LOGIN.plusSeconds(1800));
+
+      cut.shouldWrite("realm", "third", LOGIN.plusSeconds(1900));
+
+      assertThat(cut.size()).isEqualTo(2);
+      assertThat(cut.shouldWrite("realm", "second", LOGIN.plusSeconds(1901))).isFalse();
+      assertThat(cut.shouldWrite("realm", "first", LOGIN.plusSeconds(1901))).isTrue();
+    }
+  }
+}
@@ -0,0 +1,137 @@
+package de.conciso.keycloak.user.mgmt;
+
+import org.junit.jupiter.api.Nested;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class ServiceAccountCacheTest {
+
+  static final ServiceAccountCache.ServiceAccount SERVICE_ACCOUNT =
+      new ServiceAccountCache.ServiceAccount("client-uuid", "service-account-id");
+
+  static final Instant LOGIN = Instant.parse("2026-10-01T08:00:00Z");
+
+  ServiceAccountCache cut = new ServiceAccountCache(2, Duration.ofMinutes(1));
+  AtomicInteger lookups = new AtomicInteger();
+
+  String getUserId(String realmId, String clientId, ServiceAccountCache.ServiceAccount serviceAccount) {
+    return getUserId(realmId, clientId, LOGIN, serviceAccount);
+  }
+
+  String getUserId(String realmId, String clientId, Instant time, ServiceAccountCache.ServiceAccount serviceAccount) {
+    return cut.getUserId(realmId, clientId, time, () -> {
+      lookups.incrementAndGet();
+      return serviceAccount;
+    });
+  }
+
+  @Nested
+  class GivenACachedClient {
+
+    @Test
+    void thenItIsLookedUpOnce() {
+      assertThat(getUserId("realm", "client", SERVICE_ACCOUNT)).isEqualTo("service-account-id");
+      assertThat(getUserId("realm", "client", SERVICE_ACCOUNT)).isEqualTo("service-account-id");
+
+      assertThat(lookups).hasValue(1);
+      assertThat(cut.getStats()).containsEntry("serviceAccountCache.hits", "1");
+    }
+
+    @Test
+    void thenItIsLookedUpAgainAfterTheClientChanged() {
+      getUserId("realm", "client", SERVICE_ACCOUNT);
+
+      cut.invalidateClient("realm", "client-uuid");
+      getUserId("realm", "client", SERVICE_ACCOUNT);
+
+      assertThat(lookups).hasValue(2);
+    }
+
+    @Test
+    void thenItIsLookedUpAgainAfterAClusterInvalidation() {
+      getUserId("realm", "client", SERVICE_ACCOUNT);
+
+      cut.invalidate("client-uuid");
+      getUserId("realm", "client", SERVICE_ACCOUNT);
+
+      assertThat(lookups).hasValue(2);
+    }
+
+    @Test
+    void thenItIsLookedUpAgainOnceExpired() {
+      getUserId("realm", "client", SERVICE_ACCOUNT);
+
+      getUserId("realm", "client", LOGIN.plusSeconds(59), SERVICE_ACCOUNT);
+      getUserId("realm", "client", LOGIN.plusSeconds(60), SERVICE_ACCOUNT);
+
+      assertThat(lookups).hasValue(2);
+    }
+
+    @Test
+    void thenItIsNotSharedWithOtherRealms() {
+      getUserId("realm", "client", SERVICE_ACCOUNT);
+
+      assertThat(getUserId("other-realm", "client", null)).isNull();
+    }
+  }
+
+  @Nested
+  class GivenAClientWithoutServiceAccount {
+
+    @Test
+    void thenThatIsCachedAsWell() {
+      ServiceAccountCache.ServiceAccount none = new ServiceAccountCache.ServiceAccount("client-uuid", null);
+
+      assertThat(getUserId("realm", "client", none)).isNull();
+      assertThat(getUserId("realm", "client", none)).isNull();
+
+      assertThat(lookups).hasValue(1);
+    }
+  }
+
+  @Nested
+  class GivenAnInvalidationDuringTheLookup {
+
+    @Test
+    void thenTheResultIsNotCached() {
+      cut.getUserId("realm", "client", LOGIN, () -> {
+        cut.invalidateClient("realm", "client-uuid");
+        return SERVICE_ACCOUNT;
+      });
+
+      getUserId("realm", "client", SERVICE_ACCOUNT);
+
+      assertThat(lookups).hasValue(1);
+    }
+  }
+
+  @Nested
+  class GivenMoreClientsThanFitIntoTheCache {
+
+    @Test
+    void thenExpiredClientsAreEvicted() {
+      getUserId("realm", "client-1", SERVICE_ACCOUNT);
+      getUserId("realm", "client-2", LOGIN.plusSeconds(30), SERVICE_ACCOUNT);
+      getUserId("realm", "client-3", LOGIN.plusSeconds(60), SERVICE_ACCOUNT);
+
+      getUserId("realm", "client-2", LOGIN.plusSeconds(60), SERVICE_ACCOUNT);
+
+      assertThat(lookups).hasValue(3);
+      assertThat(cut.getStats()).containsEntry("serviceAccountCache.clients", "2");
+    }
+
+    @Test
+    void thenTheRealmIsClearedIfNoneExpired() {
+      getUserId("realm", "client-1", SERVICE_ACCOUNT);
+      getUserId("realm", "client-2", SERVICE_ACCOUNT);
+      getUserId("realm", "client-3", SERVICE_ACCOUNT);
+
+      assertThat(cut.getStats()).containsEntry("serviceAccountCache.clients", "0");
+    }
+  }
+}